@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import canstr.file.AsyncFileLogger;
+import canstr.file.FileLogger;
+
+/**
+ * FileLogger.appendLog throughput per line: the original open/append/close per line, and the
+ * AsyncFileLogger either waiting for its writer (sustained throughput) or dropping lines (the
+ * cost to the parsing thread).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLoggerBenchmark {
+
+    @Param({"SYNC", "ASYNC_BLOCK", "ASYNC_DROP"})
+    public String logger;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = File.createTempFile("logger-bench", "");
+        mDir.delete();
+        mDir.mkdirs();
+        if ("SYNC".equals(logger)) {
+            mLogger = new FileLogger(mDir.getPath(), "bench.log");
+        } else {
+            AsyncFileLogger.Backpressure backpressure = "ASYNC_BLOCK".equals(logger)
+                    ? AsyncFileLogger.Backpressure.BLOCK : AsyncFileLogger.Backpressure.DROP_NEWEST;
+            mLogger = new AsyncFileLogger(mDir.getPath(), "bench.log", 4096, backpressure, 1000, 64 * 1024,
+                    AsyncFileLogger.SyncPolicy.ON_CLOSE);
+        }
+        List<String> sentences = NmeaCorpus.sentences(LINES / NmeaCorpus.SENTENCES_PER_EPOCH, 1);
+        mLines = sentences.toArray(new String[sentences.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mLogger.close();
+        NmeaCorpus.delete(mDir);
+    }
+
+    @Benchmark
+    public void appendLog() {
+        mLogger.appendLog(mLines[mNext++ & (LINES - 1)]);
+    }
+
+    private static final int LINES = 1024;
+
+    private File mDir;
+    private FileLogger mLogger;
+    private String[] mLines;
+    private int mNext;
+}
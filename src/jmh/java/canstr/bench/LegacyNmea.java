@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * The String splitting, Float.parseFloat decoder NMEA.parse replaced, kept as the baseline for
+ * NmeaDecodeBenchmark. Behaviour is as it was, including "GPGGL" never matching a GLL sentence.
+ */
+class LegacyNmea {
+
+    interface SentenceParser {
+        boolean parse(String[] tokens, NMEA.GPSPosition position);
+    }
+
+    LegacyNmea() {
+        mParsers.put("GPGGA", new SentenceParser() {
+            public boolean parse(String[] tokens, NMEA.GPSPosition position) {
+                position.time = Float.parseFloat(tokens[1]);
+                position.lat = _latitude(tokens[2], tokens[3]);
+                position.lon = _longitude(tokens[4], tokens[5]);
+                position.quality = Integer.parseInt(tokens[6]);
+                position.altitude = Float.parseFloat(tokens[9]);
+                return true;
+            }
+        });
+        mParsers.put("GPGGL", new SentenceParser() {
+            public boolean parse(String[] tokens, NMEA.GPSPosition position) {
+                position.lat = _latitude(tokens[1], tokens[2]);
+                position.lon = _longitude(tokens[3], tokens[4]);
+                position.time = Float.parseFloat(tokens[5]);
+                return true;
+            }
+        });
+        mParsers.put("GPRMC", new SentenceParser() {
+            public boolean parse(String[] tokens, NMEA.GPSPosition position) {
+                try {
+                    position.time = Float.parseFloat(tokens[1]);
+                    position.lat = _latitude(tokens[3], tokens[4]);
+                    position.lon = _longitude(tokens[5], tokens[6]);
+                    position.velocity = Float.parseFloat(tokens[7]);
+                    position.dir = Float.parseFloat(tokens[8]);
+                } catch (Exception e) {
+                    // Ignored, as it was.
+                }
+                return true;
+            }
+        });
+        mParsers.put("GPVTG", new SentenceParser() {
+            public boolean parse(String[] tokens, NMEA.GPSPosition position) {
+                position.dir = Float.parseFloat(tokens[3]);
+                return true;
+            }
+        });
+    }
+
+    NMEA.GPSPosition parse(String line) {
+        if (line.startsWith("$")) {
+            String[] tokens = line.substring(1).split(",");
+            SentenceParser parser = mParsers.get(tokens[0]);
+            if (parser != null) {
+                parser.parse(tokens, mPosition);
+            }
+            mPosition.updatefix();
+        }
+        return mPosition;
+    }
+
+    private static float _latitude(String lat, String ns) {
+        float degrees = Float.parseFloat(lat.substring(2)) / 60.0f + Float.parseFloat(lat.substring(0, 2));
+        return ns.startsWith("S") ? -degrees : degrees;
+    }
+
+    private static float _longitude(String lon, String we) {
+        float degrees = Float.parseFloat(lon.substring(3)) / 60.0f + Float.parseFloat(lon.substring(0, 3));
+        return we.startsWith("W") ? -degrees : degrees;
+    }
+
+    private final Map<String, SentenceParser> mParsers = new HashMap<String, SentenceParser>();
+    private final NMEA.GPSPosition mPosition = new NMEA.GPSPosition();
+}
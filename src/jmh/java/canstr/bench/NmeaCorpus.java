@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates NMEA logs like those of a receiver on a tractor working a field: a 10Hz stream of
+ * GGA, RMC, GLL and VTG (which are decoded) along with GSA and three GSV (which are not), while
+ * driving up and down rows with small jitter in position, speed and satellite data.
+ * Output is deterministic for a given seed.
+ */
+public final class NmeaCorpus {
+
+    /** Sentences written for each epoch. */
+    public static final int SENTENCES_PER_EPOCH = 8;
+
+    private NmeaCorpus() {
+    }
+
+    /**
+     * @return the sentences of the given number of epochs, each ending "\r\n".
+     */
+    public static byte[] generate(int epochs, long seed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(epochs * SENTENCES_PER_EPOCH * 80);
+        for (String sentence : sentences(epochs, seed)) {
+            byte[] bytes = sentence.getBytes(ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the sentences of the given number of epochs, each ending "\r\n".
+     */
+    public static List<String> sentences(int epochs, long seed) {
+        List<String> sentences = new ArrayList<String>(epochs * SENTENCES_PER_EPOCH);
+        Random random = new Random(seed);
+        double lat = 41.6488;
+        double lon = -0.8891;
+        double heading = 0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            // Rows of 400m at 8km/h, turning at each headland.
+            double speedKnots = 4.3 + random.nextGaussian() * 0.05;
+            if (epoch % 1800 == 0) {
+                heading = heading == 0 ? 180 : 0;
+            }
+            double metres = speedKnots * 0.1852 / 3.6;
+            lat += Math.cos(Math.toRadians(heading)) * metres / 111320;
+            lon += Math.sin(Math.toRadians(heading)) * metres / (111320 * Math.cos(Math.toRadians(lat)));
+            double jitterLat = lat + random.nextGaussian() * 2e-7;
+            double jitterLon = lon + random.nextGaussian() * 2e-7;
+            String time = _time(epoch);
+            String latField = _coordinate(jitterLat, 2) + (jitterLat < 0 ? ",S" : ",N");
+            String lonField = _coordinate(jitterLon, 3) + (jitterLon < 0 ? ",W" : ",E");
+            double course = (heading + random.nextGaussian() * 0.5 + 360) % 360;
+            int satellites = 9 + random.nextInt(4);
+            float altitude = 210.0f + (float) random.nextGaussian() * 0.3f;
+            sentences.add(withChecksum(String.format(Locale.US, "GPGGA,%s,%s,%s,4,%02d,0.8,%.1f,M,51.2,M,1.0,0001",
+                    time, latField, lonField, satellites, altitude)));
+            sentences.add(withChecksum(String.format(Locale.US, "GPRMC,%s,A,%s,%s,%.2f,%.1f,170617,,,D",
+                    time, latField, lonField, speedKnots, course)));
+            sentences.add(withChecksum(String.format(Locale.US, "GPGLL,%s,%s,%s,A,D", latField, lonField, time)));
+            sentences.add(withChecksum(String.format(Locale.US, "GPVTG,%.1f,T,%.1f,M,%.2f,N,%.2f,K,D",
+                    course, (course + 358.9) % 360, speedKnots, speedKnots * 1.852)));
+            sentences.add(withChecksum("GPGSA,A,3,02,05,07,09,13,16,20,23,26,29,,,1.5,0.8,1.2"));
+            for (int page = 1; page <= 3; page++) {
+                StringBuilder gsv = new StringBuilder(String.format(Locale.US, "GPGSV,3,%d,12", page));
+                for (int sat = 0; sat < 4; sat++) {
+                    gsv.append(String.format(Locale.US, ",%02d,%02d,%03d,%02d", page * 4 + sat,
+                            10 + random.nextInt(80), random.nextInt(360), 30 + random.nextInt(20)));
+                }
+                sentences.add(withChecksum(gsv.toString()));
+            }
+        }
+        return sentences;
+    }
+
+    /**
+     * @return count sentences of one type, such as "GGA", without line endings.
+     */
+    public static String[] sentencesOfType(String type, int count, long seed) {
+        String[] result = new String[count];
+        int found = 0;
+        int epochs = count;
+        for (String sentence : sentences(epochs, seed)) {
+            if (found < count && sentence.startsWith("$GP" + type)) {
+                result[found++] = sentence.trim();
+            }
+        }
+        if (found < count) {
+            throw new IllegalArgumentException("No sentences of type " + type);
+        }
+        return result;
+    }
+
+    /**
+     * Write a corpus to a file, compressed if the name ends ".gz".
+     */
+    public static File write(File file, int epochs, long seed) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out, 64 * 1024);
+        }
+        try {
+            out.write(generate(epochs, seed));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @param body sentence without the leading '$' or checksum.
+     * @return the full sentence with checksum and "\r\n".
+     */
+    public static String withChecksum(String body) {
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            sum ^= body.charAt(i);
+        }
+        return String.format(Locale.US, "$%s*%02X\r\n", body, sum);
+    }
+
+    private static String _time(int epoch) {
+        int tenths = epoch % (24 * 3600 * 10);
+        int seconds = tenths / 10;
+        return String.format(Locale.US, "%02d%02d%02d.%d0", seconds / 3600, seconds / 60 % 60, seconds % 60, tenths % 10);
+    }
+
+    private static String _coordinate(double degrees, int width) {
+        degrees = Math.abs(degrees);
+        int whole = (int) degrees;
+        double minutes = (degrees - whole) * 60;
+        return String.format(Locale.US, "%0" + width + "d%010.7f", whole, minutes);
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+}
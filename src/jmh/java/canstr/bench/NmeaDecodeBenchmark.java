@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.agroguia.model.LazyFix;
+import es.agroguia.model.NMEA;
+
+/**
+ * Decoding alone, per sentence type: NMEA.parse in full, the String splitting decoder it
+ * replaced, and a LazyFix reading only the position.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmeaDecodeBenchmark {
+
+    @Param({"GGA", "RMC", "GLL", "VTG"})
+    public String type;
+
+    @Setup
+    public void setup() {
+        mSentences = NmeaCorpus.sentencesOfType(type, SENTENCES, 1);
+    }
+
+    @Benchmark
+    public NMEA.GPSPosition parse() {
+        return mNmea.parse(mSentences[mNext++ & (SENTENCES - 1)]);
+    }
+
+    /**
+     * The baseline to compare parse() with.
+     */
+    @Benchmark
+    public NMEA.GPSPosition legacySplitParse() {
+        return mLegacy.parse(mSentences[mNext++ & (SENTENCES - 1)]);
+    }
+
+    @Benchmark
+    public double lazyLatLon() {
+        mLazyFix.reset(mSentences[mNext++ & (SENTENCES - 1)]);
+        return mLazyFix.getLat() + mLazyFix.getLon();
+    }
+
+    private static final int SENTENCES = 64;
+
+    private String[] mSentences;
+    private final NMEA mNmea = new NMEA();
+    private final LegacyNmea mLegacy = new LegacyNmea();
+    private final LazyFix mLazyFix = new LazyFix();
+    private int mNext;
+}
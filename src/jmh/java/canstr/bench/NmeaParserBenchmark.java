@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import canstr.gps.NmeaParser;
+import es.agroguia.model.NMEA;
+
+/**
+ * NmeaParser end to end, framing and decoding a corpus in 1500 byte chunks for a listener, with
+ * logging to a file on or off. Scores are per sentence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmeaParserBenchmark {
+
+    static final int EPOCHS = 1000;
+
+    @Param({"false", "true"})
+    public boolean logging;
+
+    @Setup
+    public void setup() throws IOException {
+        mCorpus = NmeaCorpus.generate(EPOCHS, 1);
+        mParser = new NmeaParser();
+        mParser.addGpsListener(new NmeaParser.GpsListener() {
+            public void onGpsPosition(NMEA.GPSPosition gps) {
+                mSum += gps.getLat();
+            }
+        });
+        if (logging) {
+            mDir = File.createTempFile("nmea-bench", "");
+            mDir.delete();
+            mDir.mkdirs();
+            mParser.ToggleLog(mDir.getPath(), "bench.log");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mParser.stopLogging();
+        if (mDir != null) {
+            NmeaCorpus.delete(mDir);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS * NmeaCorpus.SENTENCES_PER_EPOCH)
+    public double parse() {
+        for (int offset = 0; offset < mCorpus.length; offset += CHUNK) {
+            mParser.Parse(mCorpus, offset, Math.min(CHUNK, mCorpus.length - offset));
+        }
+        return mSum;
+    }
+
+    private static final int CHUNK = 1500;
+
+    private byte[] mCorpus;
+    private NmeaParser mParser;
+    private File mDir;
+    private double mSum;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import canstr.parse.IPacket;
+import canstr.parse.SentenceParser;
+
+/**
+ * Framing alone: SentenceParser.Parse over a corpus delivered in chunks of various sizes,
+ * either all the same size or of random sizes up to chunkSize (as from a serial port).
+ * Scores are per sentence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SentenceParserBenchmark {
+
+    static final int EPOCHS = 1000;
+
+    @Param({"1", "64", "1500", "65536"})
+    public int chunkSize;
+
+    @Param({"FIXED", "RANDOM"})
+    public String fragmentation;
+
+    @Setup
+    public void setup() {
+        mCorpus = NmeaCorpus.generate(EPOCHS, 1);
+        Random random = new Random(2);
+        int[] cuts = new int[mCorpus.length + 1];
+        int count = 0;
+        for (int offset = 0; offset < mCorpus.length; ) {
+            int length = "RANDOM".equals(fragmentation) ? 1 + random.nextInt(chunkSize) : chunkSize;
+            offset = Math.min(mCorpus.length, offset + length);
+            cuts[count++] = offset;
+        }
+        mCuts = new int[count];
+        System.arraycopy(cuts, 0, mCuts, 0, count);
+        mParser = new SentenceParser() {
+            @Override
+            public void onPacket(IPacket packet) {
+                mBytes += packet.length();
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS * NmeaCorpus.SENTENCES_PER_EPOCH)
+    public long parse() {
+        int offset = 0;
+        for (int cut : mCuts) {
+            mParser.Parse(mCorpus, offset, cut - offset);
+            offset = cut;
+        }
+        return mBytes;
+    }
+
+    private byte[] mCorpus;
+    private int[] mCuts;
+    private SentenceParser mParser;
+    private long mBytes;
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import canstr.util.BoundedQueue;
+import canstr.util.PipelineMetrics;
+
+/**
+ * A FileLogger which never touches the file on the appending thread.
+ * appendLog() puts the text on a bounded lock free queue. A dedicated writer thread drains it
+ * into a buffer which is written to one long lived FileChannel once it holds flushSize bytes or
+ * flushInterval has passed, so many lines share a single write (and optional fsync).
+ * When the queue is full the Backpressure policy decides whether to wait or drop a line.
+ * A change of file through NewFile() takes effect at the writer's next batch.
+ * The writer starts with the first append. Subclasses can change how files are written by
+ * overriding openChannel(), syncChannel(), closeChannel() and onWritten(), which run on the
+ * writer thread.
+ * I/O errors are reported and the writer carries on; if it stops on anything else the logger is
+ * failed, see getFailure(), and lines appended from then on are dropped rather than waited on.
+ */
+public class AsyncFileLogger extends FileLogger {
+
+    /**
+     * What appendLog() does when the queue is full.
+     */
+    public enum Backpressure {
+        /** Wait for the writer to make room. */
+        BLOCK,
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Discard the line being appended. */
+        DROP_NEWEST
+    }
+
+    /**
+     * When written data is forced to the storage device.
+     */
+    public enum SyncPolicy {
+        /** Leave it to the operating system. */
+        NEVER,
+        /** After every batch written. */
+        ON_FLUSH,
+        /** When the file is closed or changed. */
+        ON_CLOSE
+    }
+
+    /**
+     * Construct a logger with a 4096 line queue which drops the oldest line when full, and
+     * writes at least once a second or every 64KB, syncing on close.
+     * @param path Directory which will be created to store the log file.
+     * @param baseName Base name of the file which will be prefixed with a timestamp
+     */
+    public AsyncFileLogger(String path, String baseName) {
+        this(path, baseName, 4096, Backpressure.DROP_OLDEST, 1000, 64 * 1024, SyncPolicy.ON_CLOSE);
+    }
+
+    /**
+     * @param path Directory which will be created to store the log file.
+     * @param baseName Base name of the file which will be prefixed with a timestamp
+     * @param queueCapacity Number of lines which may wait for the writer.
+     * @param backpressure What to do when the queue is full.
+     * @param flushIntervalMs Longest time a line waits in the buffer before being written.
+     * @param flushSize Bytes buffered before they are written regardless of the interval. A
+     *                  line longer than this is written straight through.
+     * @param syncPolicy When to force written data to the device.
+     * @throws IllegalArgumentException if flushSize is not positive.
+     */
+    public AsyncFileLogger(String path, String baseName, int queueCapacity, Backpressure backpressure,
+                           long flushIntervalMs, int flushSize, SyncPolicy syncPolicy) {
+        super(path, baseName);
+        if (flushSize <= 0) {
+            throw new IllegalArgumentException("flushSize must be positive: " + flushSize);
+        }
+        mQueue = new BoundedQueue<String>(queueCapacity);
+        mBackpressure = backpressure;
+        mFlushIntervalNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+        mBuffer = ByteBuffer.allocateDirect(flushSize);
+        mSyncPolicy = syncPolicy;
+        mWriter = new Thread("AsyncFileLogger") {
+            public void run() {
+                try {
+                    _writeLoop();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    _fail(e);
+                } catch (Error e) {
+                    _fail(e);
+                    throw e;
+                }
+            }
+        };
+        mWriter.setDaemon(true);
+    }
+
+    /**
+     * Queue the text to be appended to the file by the writer thread.
+     * Only blocks if the Backpressure policy is BLOCK and the queue is full.
+     * @param text The text to append to the file.
+     */
+    @Override
+    public void appendLog(String text) {
+        if (mClosed) {
+            return;
+        }
+        if (mFailure != null) {
+            _dropped();
+            return;
+        }
+        if (!mStarted.get() && mStarted.compareAndSet(false, true)) {
+            mWriter.start();
+        }
+        while (!mQueue.offer(text)) {
+            switch (mBackpressure) {
+                case DROP_NEWEST:
+                    _dropped();
+                    return;
+                case DROP_OLDEST:
+                    if (mQueue.poll() != null) {
+                        _dropped();
+                    }
+                    break;
+                default:
+                    LockSupport.unpark(mWriter);
+                    LockSupport.parkNanos(BLOCK_WAIT_NS);
+                    if (mClosed) {
+                        return;
+                    }
+                    if (mFailure != null) {
+                        _dropped();
+                        return;
+                    }
+                    break;
+            }
+        }
+        if (mFailure != null) {
+            // The writer failed after the offer; don't leave the line queued for nobody.
+            while (mQueue.poll() != null) {
+                _dropped();
+            }
+            return;
+        }
+        // Wake the writer early rather than let the queue fill up.
+        if (mQueue.size() >= mQueue.capacity() / 2) {
+            LockSupport.unpark(mWriter);
+        }
+    }
+
+    /**
+     * Write out everything queued, sync according to the policy and close the file.
+     * Lines appended afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mStarted.get()) {
+            LockSupport.unpark(mWriter);
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return what stopped the writer thread, or null while it is running or stopped by close().
+     */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return number of lines discarded because the queue was full or the writer had failed.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Count dropped lines into the metrics as LOGGER_DROPS.
+     * @param metrics Metrics to record into, or null.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return number of lines waiting for the writer.
+     */
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    private void _dropped() {
+        mDropped.incrementAndGet();
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.increment(PipelineMetrics.LOGGER_DROPS);
+        }
+    }
+
+    /**
+     * Mark the logger failed after the writer stopped unexpectedly: drop what is queued and
+     * release the file as far as possible.
+     */
+    private void _fail(Throwable failure) {
+        mFailure = failure;
+        while (mQueue.poll() != null) {
+            _dropped();
+        }
+        try {
+            _closeChannel();
+            closeIndex();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void _writeLoop() {
+        long lastFlush = System.nanoTime();
+        boolean closing;
+        do {
+            closing = mClosed;
+            String name = getFileName();
+            if (!name.equals(mOpenName)) {
+                _flush();
+                _closeChannel();
+                // The new file is opened by the first write to it.
+                mOpenName = name;
+                mOpenFailed = false;
+                mOffset = new File(name).length();
+            }
+            String text;
+            while ((text = mQueue.poll()) != null) {
+                byte[] data = text.getBytes(UTF8);
+                indexLine(mOpenName, text, mOffset);
+                mOffset += data.length;
+                _buffer(data);
+            }
+            long now = System.nanoTime();
+            if (now - lastFlush >= mFlushIntervalNs) {
+                _flush();
+                lastFlush = now;
+            }
+            if (!closing && mQueue.isEmpty()) {
+                LockSupport.parkNanos(this, mFlushIntervalNs);
+            }
+        } while (!closing);
+        _flush();
+        _closeChannel();
+        closeIndex();
+    }
+
+    private void _buffer(byte[] data) {
+        if (data.length > mBuffer.remaining()) {
+            _flush();
+        }
+        if (data.length > mBuffer.remaining()) {
+            _write(ByteBuffer.wrap(data));
+        } else {
+            mBuffer.put(data);
+        }
+    }
+
+    /**
+     * Write the buffered data to the channel, forcing it to the device if the policy says so.
+     */
+    private void _flush() {
+        if (mBuffer.position() > 0) {
+            mBuffer.flip();
+            _write(mBuffer);
+            mBuffer.clear();
+            if (mChannel != null && mSyncPolicy == SyncPolicy.ON_FLUSH) {
+                try {
+                    syncChannel(mChannel);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void _write(ByteBuffer data) {
+        if (mChannel == null && !mOpenFailed) {
+            _openChannel(mOpenName);
+        }
+        if (mChannel == null) {
+            data.position(data.limit());
+            return;
+        }
+        int length = data.remaining();
+        try {
+            while (data.hasRemaining()) {
+                mChannel.write(data);
+            }
+            onWritten(length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            data.position(data.limit());
+        }
+    }
+
+    private void _openChannel(String name) {
+        try {
+            File file = new File(name);
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            mChannel = openChannel(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mChannel = null;
+            mOpenFailed = true;
+        }
+    }
+
+    private void _closeChannel() {
+        if (mChannel != null) {
+            try {
+                closeChannel(mChannel);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Open the channel batches are written to. Runs on the writer thread.
+     * The default appends to the file itself.
+     */
+    protected WritableByteChannel openChannel(File file) throws IOException {
+        return new FileOutputStream(file, true).getChannel();
+    }
+
+    /**
+     * Close a channel from openChannel(), syncing it first if the policy asks for it. Runs on the
+     * writer thread when the file changes and when the logger is closed.
+     */
+    protected void closeChannel(WritableByteChannel channel) throws IOException {
+        try {
+            if (mSyncPolicy != SyncPolicy.NEVER) {
+                syncChannel(channel);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Force what has been written to a channel from openChannel() to the device. Runs on the
+     * writer thread after each batch under ON_FLUSH, and from closeChannel().
+     * The default forces a FileChannel and leaves any other channel to the operating system.
+     */
+    protected void syncChannel(WritableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    /**
+     * Called on the writer thread after each write to the channel.
+     * @param bytes number of bytes written.
+     */
+    protected void onWritten(int bytes) {
+    }
+
+    protected SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long BLOCK_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final BoundedQueue<String> mQueue;
+    private final Backpressure mBackpressure;
+    private final long mFlushIntervalNs;
+    private final SyncPolicy mSyncPolicy;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mWriter;
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+    private volatile boolean mClosed;
+    private volatile Throwable mFailure;
+    private volatile PipelineMetrics mMetrics;
+
+    // Only touched by the writer thread.
+    private final ByteBuffer mBuffer;
+    private WritableByteChannel mChannel;
+    private String mOpenName;
+    private boolean mOpenFailed;
+    private long mOffset;
+}
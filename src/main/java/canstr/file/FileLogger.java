@@ -44,8 +44,11 @@ import java.util.Locale;
  * The path and filename can be modified and will result in the next append being to the new file.
  */
 public class FileLogger {
-    private String mFileName;
+    private volatile String mFileName;
     private final Object mFileLock = new Object();
+    private volatile boolean mIndexing;
+    private TimeIndexWriter mIndexWriter;
+    private String mIndexName;
 
     /**
      * Construct a new FileLogger for a file at path/fileName location.
@@ -96,16 +99,95 @@ public class FileLogger {
                 }
             }
             try {
+                long offset = logFile.length();
                 //BufferedWriter for performance, true to set append to file flag
                 BufferedWriter buf = new BufferedWriter(new FileWriter(logFile, true));
                 buf.append(text);
                 buf.flush();
                 buf.close();
+                indexLine(mFileName, text, offset);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * Keep a TimeIndex sidecar next to each log file, so FileDataStreamer can seek straight to a
+     * time in it. Each appended text is taken to be one sentence.
+     * @return false if this logger cannot index and the setting was refused.
+     */
+    public boolean setTimeIndexing(boolean enabled) {
+        mIndexing = enabled;
+        return true;
+    }
+
+    public boolean isTimeIndexing() {
+        return mIndexing;
+    }
+
+    /**
+     * Record a line in the time index of the file it was written to, if indexing is on.
+     * Must be called by one thread at a time, in the order lines are written.
+     * @param fileName file the line was written to.
+     * @param text the line as appended.
+     * @param offset byte offset in the file at which the line starts.
+     */
+    protected void indexLine(String fileName, String text, long offset) {
+        if (!mIndexing) {
+            return;
+        }
+        if (!fileName.equals(mIndexName)) {
+            closeIndex();
+            // Only try to open each file's index once.
+            mIndexName = fileName;
+            File indexFile = TimeIndex.indexFileFor(fileName);
+            File dir = indexFile.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            try {
+                mIndexWriter = new TimeIndexWriter(indexFile, TimeIndex.DEFAULT_INTERVAL);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mIndexWriter != null) {
+            try {
+                mIndexWriter.onLine(text, offset);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeIndex();
+            }
+        }
+    }
+
+    /**
+     * Write out and close the index of the current file, if one is open.
+     */
+    protected void closeIndex() {
+        if (mIndexWriter != null) {
+            try {
+                mIndexWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mIndexWriter = null;
+        }
+    }
+
+    /**
+     * Release anything held open between appends. Each append opens and closes the file, so
+     * only the time index, if any, is closed here, but subclasses which keep the file open
+     * close it too.
+     */
+    public void close() {
+        synchronized (mFileLock) {
+            closeIndex();
+            mIndexName = null;
+        }
+    }
+
     private String FormattedFileName(String fileName)
     {
         String newName = new SimpleDateFormat("yyyyMMdd_HHmmss-'" + fileName + "'", Locale.US).format(new Date());
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * An AsyncFileLogger which gzips the log as it is written and rolls on to a new segment once the
+ * current one holds maxBytes of (uncompressed) text or a wall clock boundary is crossed. The check
+ * is made after each batch the writer writes, so a segment may exceed maxBytes by up to a batch.
+ * Segments are named as by FileLogger with a sequence number and ".gz" appended, so they sort in
+ * the order written. A segment is written as ".gz.part" and closed and renamed to ".gz" on a
+ * background thread, so the writer moves straight on and only finished segments carry ".gz".
+ * Under SyncPolicy.ON_FLUSH each batch is flushed through the compressor and forced to the device,
+ * so a crash loses at most the batch being written. Segments left as ".gz.part" by a crash are
+ * recovered, see recover(), when a logger with the same path and base name is constructed.
+ * Time indexing is not supported: setTimeIndexing(true) is refused and no index is written.
+ */
+public class RollingFileLogger extends AsyncFileLogger {
+
+    /**
+     * @param path Directory which will be created to store the log segments.
+     * @param baseName Base name of each segment which will be prefixed with a timestamp
+     * @param maxBytes Text written to a segment before rolling, or 0 for no size limit.
+     * @param periodMs Roll at every multiple of this period since the epoch (e.g. hourly),
+     *                 or 0 for no time limit.
+     */
+    public RollingFileLogger(String path, String baseName, long maxBytes, long periodMs) {
+        this(path, baseName, maxBytes, periodMs, SyncPolicy.ON_CLOSE);
+    }
+
+    /**
+     * @param path Directory which will be created to store the log segments.
+     * @param baseName Base name of each segment which will be prefixed with a timestamp
+     * @param maxBytes Text written to a segment before rolling, or 0 for no size limit.
+     * @param periodMs Roll at every multiple of this period since the epoch (e.g. hourly),
+     *                 or 0 for no time limit.
+     * @param syncPolicy When to force written data to the device.
+     */
+    public RollingFileLogger(String path, String baseName, long maxBytes, long periodMs,
+                             SyncPolicy syncPolicy) {
+        super(path, baseName, 4096, Backpressure.DROP_OLDEST, 1000, 64 * 1024, syncPolicy);
+        mMaxBytes = maxBytes;
+        mPeriodMs = periodMs;
+        mFinisher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RollingFileLogger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Before the first append, so this logger's own segment cannot be mistaken for one.
+        recover(path, baseName);
+    }
+
+    /**
+     * Finish the segments a crashed logger left as ".gz.part" in path: the complete lines which
+     * can still be decompressed are written to the ".gz" segment the part would have become, and
+     * the part is deleted. Done by the constructor, and only safe while no other logger is
+     * writing segments with the same path and base name.
+     * @return number of segments recovered.
+     */
+    public static int recover(String path, String baseName) {
+        File[] files = new File(path).listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int recovered = 0;
+        String tag = "-" + baseName + "-";
+        for (File part : files) {
+            String name = part.getName();
+            if (part.isFile() && name.endsWith(".gz" + PART) && name.contains(tag)) {
+                try {
+                    _recover(part, new File(path, name.substring(0, name.length() - PART.length())));
+                    recovered++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Start a new segment with the given path and base name at the writer's next batch.
+     * Called from the FileLogger constructor too, before this class's fields are assigned, which
+     * is why the fields it sets have no initialisers.
+     */
+    @Override
+    public synchronized String NewFile(String path, String baseName) {
+        mPath = path;
+        mBaseName = baseName;
+        return super.NewFile(path, String.format(Locale.US, "%s-%04d.gz", baseName, mSequence++));
+    }
+
+    /**
+     * Close the logger, waiting for every segment to be finished.
+     */
+    @Override
+    public void close() {
+        super.close();
+        mFinisher.shutdown();
+        try {
+            mFinisher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Time indexing is not supported, as offsets into compressed segments cannot be seeked to.
+     * setTimeIndexing(true) changes nothing and returns false; isTimeIndexing() stays false.
+     * @return false if indexing was asked for, true for setTimeIndexing(false).
+     */
+    @Override
+    public boolean setTimeIndexing(boolean enabled) {
+        return !enabled;
+    }
+
+    @Override
+    protected WritableByteChannel openChannel(File file) throws IOException {
+        mSegmentBytes = 0;
+        if (mPeriodMs > 0) {
+            mRollAtMs = (System.currentTimeMillis() / mPeriodMs + 1) * mPeriodMs;
+        }
+        SyncPolicy policy = getSyncPolicy();
+        return new GzipSegment(file, policy != SyncPolicy.NEVER, policy == SyncPolicy.ON_FLUSH);
+    }
+
+    /**
+     * Flush the compressor's pending output and force the segment file to the device.
+     */
+    @Override
+    protected void syncChannel(WritableByteChannel channel) throws IOException {
+        ((GzipSegment) channel).sync();
+    }
+
+    @Override
+    protected void closeChannel(final WritableByteChannel channel) {
+        mFinisher.execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onWritten(int bytes) {
+        mSegmentBytes += bytes;
+        if ((mMaxBytes > 0 && mSegmentBytes >= mMaxBytes)
+                || (mPeriodMs > 0 && System.currentTimeMillis() >= mRollAtMs)) {
+            mSegmentBytes = 0;
+            mRollAtMs = Long.MAX_VALUE;
+            NewFile(mPath, mBaseName);
+        }
+    }
+
+    /**
+     * Copy the complete lines which can be decompressed from a crashed segment's part into the
+     * segment, through a second part so a crash during recovery leaves no broken segment.
+     */
+    private static void _recover(File part, File segment) throws IOException {
+        File recovering = new File(segment.getPath() + ".recovering" + PART);
+        FileOutputStream file = new FileOutputStream(recovering);
+        GZIPOutputStream out = new GZIPOutputStream(file, 8192);
+        try {
+            InputStream in = new FileInputStream(part);
+            try {
+                in = new GZIPInputStream(in, 8192);
+                byte[] buffer = new byte[8192];
+                byte[] line = new byte[8192];
+                int length = 0;
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    for (int i = 0; i < read; i++) {
+                        if (length == line.length) {
+                            byte[] longer = new byte[line.length * 2];
+                            System.arraycopy(line, 0, longer, 0, length);
+                            line = longer;
+                        }
+                        line[length++] = buffer[i];
+                        if (buffer[i] == '\n' || buffer[i] == '\r') {
+                            out.write(line, 0, length);
+                            length = 0;
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // The end of the part was never written; keep the lines before it.
+            } catch (ZipException e) {
+                // As for EOFException, a crash part way through a block.
+            } finally {
+                in.close();
+            }
+            out.finish();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!recovering.renameTo(segment)) {
+            throw new IOException("Could not rename " + recovering + " to " + segment);
+        }
+        if (!part.delete()) {
+            throw new IOException("Could not delete " + part);
+        }
+    }
+
+    /**
+     * A gzip stream written to name.part, renamed to name when closed.
+     */
+    private static class GzipSegment implements WritableByteChannel {
+        /**
+         * @param sync force the file to the device when closed.
+         * @param syncFlush make sync() flush the compressor too, so what was written before it
+         *                  can be decompressed after a crash.
+         */
+        GzipSegment(File file, boolean sync, boolean syncFlush) throws IOException {
+            mFile = file;
+            mPart = new File(file.getPath() + PART);
+            mOut = new FileOutputStream(mPart, true);
+            mGzip = new GZIPOutputStream(mOut, 8192, syncFlush);
+            mSync = sync;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            if (src.hasArray()) {
+                mGzip.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining()) {
+                    int chunk = Math.min(src.remaining(), mCopy.length);
+                    src.get(mCopy, 0, chunk);
+                    mGzip.write(mCopy, 0, chunk);
+                }
+            }
+            return length;
+        }
+
+        public boolean isOpen() {
+            return mOpen;
+        }
+
+        void sync() throws IOException {
+            mGzip.flush();
+            mOut.getChannel().force(false);
+        }
+
+        public void close() throws IOException {
+            if (!mOpen) {
+                return;
+            }
+            mOpen = false;
+            try {
+                mGzip.finish();
+                if (mSync) {
+                    mOut.getFD().sync();
+                }
+            } finally {
+                mGzip.close();
+            }
+            if (!mPart.renameTo(mFile)) {
+                throw new IOException("Could not rename " + mPart + " to " + mFile);
+            }
+        }
+
+        private final File mFile;
+        private final File mPart;
+        private final FileOutputStream mOut;
+        private final GZIPOutputStream mGzip;
+        private final boolean mSync;
+        private final byte[] mCopy = new byte[8192];
+        private boolean mOpen = true;
+    }
+
+    private static final String PART = ".part";
+
+    private final long mMaxBytes;
+    private final long mPeriodMs;
+    private final ExecutorService mFinisher;
+
+    // Assigned from NewFile() during construction, so deliberately not initialised here.
+    private String mPath;
+    private String mBaseName;
+    private int mSequence;
+
+    // Only touched by the writer thread.
+    private long mSegmentBytes;
+    private long mRollAtMs;
+}
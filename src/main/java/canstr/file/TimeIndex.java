@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import es.agroguia.model.LazyFix;
+import es.agroguia.model.NMEA;
+
+/**
+ * A sparse index from time to byte offset in an NMEA text log, kept in a sidecar file named
+ * after the log with ".idx" appended.
+ * Times are microseconds since midnight of the day the log starts, carrying on past 24h when
+ * the log runs over midnight, so they always increase through the log. Entries are 16 bytes
+ * (time then offset, big endian longs) and written roughly every 64KB of log, so the index
+ * stays well under 1% of the log size.
+ */
+public class TimeIndex {
+
+    /** Default log bytes between index entries. */
+    public static final long DEFAULT_INTERVAL = 64 * 1024;
+
+    /** Appended to a log's name to name its index. */
+    public static final String SUFFIX = ".idx";
+
+    TimeIndex(long[] times, long[] offsets, int size) {
+        mTimes = times;
+        mOffsets = offsets;
+        mSize = size;
+    }
+
+    /**
+     * @return the sidecar index file for a log.
+     */
+    public static File indexFileFor(String logFile) {
+        return new File(logFile + SUFFIX);
+    }
+
+    /**
+     * Read an index file.
+     */
+    public static TimeIndex load(File indexFile) throws IOException {
+        int size = (int) (indexFile.length() / ENTRY_SIZE);
+        long[] times = new long[size];
+        long[] offsets = new long[size];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        int read = 0;
+        try {
+            for (; read < size; read++) {
+                times[read] = in.readLong();
+                offsets[read] = in.readLong();
+            }
+        } catch (EOFException ex) {
+            // A partly written last entry is ignored.
+        } finally {
+            in.close();
+        }
+        return new TimeIndex(times, offsets, read);
+    }
+
+    /**
+     * Find where to start reading to reach the given time, by binary search.
+     * @param micros time as described for the class.
+     * @return offset of an indexed line at or before the time, or 0 if there is none.
+     */
+    public long offsetAtOrBefore(long micros) {
+        int index = Arrays.binarySearch(mTimes, 0, mSize, micros);
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            // Several entries may share a time; start at the first of them.
+            while (index > 0 && mTimes[index - 1] == micros) {
+                index--;
+            }
+        }
+        return index >= 0 ? mOffsets[index] : 0;
+    }
+
+    /**
+     * @return time of the entry at offsetAtOrBefore(micros), or -1 if there is none.
+     */
+    public long timeAtOrBefore(long micros) {
+        int index = Arrays.binarySearch(mTimes, 0, mSize, micros);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 ? mTimes[index] : -1;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Build (or rebuild) the index for an existing uncompressed log.
+     * @return the index built.
+     */
+    public static TimeIndex build(String logFile) throws IOException {
+        File indexFile = indexFileFor(logFile);
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Could not replace " + indexFile);
+        }
+        TimeIndexWriter writer = new TimeIndexWriter(indexFile, DEFAULT_INTERVAL);
+        InputStream in = new BufferedInputStream(new FileInputStream(logFile), 64 * 1024);
+        try {
+            StringBuilder line = new StringBuilder();
+            long offset = 0;
+            long lineStart = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b == '\r' || b == '\n') {
+                    if (line.length() > 0) {
+                        writer.onLine(line, lineStart);
+                        line.setLength(0);
+                    }
+                    lineStart = offset;
+                } else {
+                    line.append((char) b);
+                }
+            }
+            if (line.length() > 0) {
+                writer.onLine(line, lineStart);
+            }
+        } finally {
+            in.close();
+            writer.close();
+        }
+        return load(indexFile);
+    }
+
+    /**
+     * @return time of day of the line in microseconds since midnight, or -1 if it has none.
+     */
+    public static long timeOfDay(CharSequence line, LazyFix fix) {
+        if (!fix.reset(line)) {
+            return -1;
+        }
+        double time = fix.getTime();
+        return Double.isNaN(time) ? -1 : NMEA.toMicros(time);
+    }
+
+    static final int ENTRY_SIZE = 16;
+
+    private final long[] mTimes;
+    private final long[] mOffsets;
+    private final int mSize;
+}
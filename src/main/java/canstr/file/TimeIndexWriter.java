@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import es.agroguia.model.LazyFix;
+import es.agroguia.model.NMEA;
+
+/**
+ * Appends entries to a TimeIndex sidecar as lines are written to a log.
+ * Given each line and the offset it starts at, an entry is written for the first timestamped
+ * line at least interval bytes after the previous entry. An existing index is carried on from
+ * its last entry, as when a log is appended to again.
+ */
+public class TimeIndexWriter implements Closeable {
+
+    public TimeIndexWriter(File indexFile, long interval) throws IOException {
+        mInterval = interval;
+        if (indexFile.exists()) {
+            TimeIndex existing = TimeIndex.load(indexFile);
+            if (existing.size() > 0) {
+                mLastTime = existing.timeAtOrBefore(Long.MAX_VALUE);
+                mNextOffset = existing.offsetAtOrBefore(Long.MAX_VALUE) + interval;
+            }
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true), 4096));
+    }
+
+    /**
+     * @param line a line of the log, without its line ending.
+     * @param offset byte offset in the log at which the line starts.
+     */
+    public void onLine(CharSequence line, long offset) throws IOException {
+        long timeOfDay = TimeIndex.timeOfDay(line, mFix);
+        if (timeOfDay < 0) {
+            return;
+        }
+        mLastTime = NMEA.continuous(timeOfDay, mLastTime);
+        if (offset >= mNextOffset) {
+            mOut.writeLong(mLastTime);
+            mOut.writeLong(offset);
+            mNextOffset = offset + mInterval;
+        }
+    }
+
+    /**
+     * Write out any buffered entries.
+     */
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private final DataOutputStream mOut;
+    private final long mInterval;
+    private final LazyFix mFix = new LazyFix();
+    private long mLastTime = -1;
+    private long mNextOffset;
+}
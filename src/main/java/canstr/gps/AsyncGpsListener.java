@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import canstr.util.SpscRing;
+import es.agroguia.model.NMEA;
+
+/**
+ * Hands positions to another GpsListener on its own executor, so a slow listener never holds up
+ * the parsing thread or any other listener.
+ * Each position is copied into a preallocated slot of a single producer ring, so this must be
+ * added to one parser only. What happens when the listener falls behind is set by the
+ * Overflow policy. The listener is called by one thread at a time, in order, and the position
+ * passed is reused once it returns, as with the parser itself.
+ */
+public class AsyncGpsListener implements NmeaParser.GpsListener {
+
+    /**
+     * What onGpsPosition() does when the listener has not kept up.
+     */
+    public enum Overflow {
+        /** Keep only the latest position not yet delivered, replacing any older one. */
+        COALESCE,
+        /** Queue up to the capacity, then discard new positions. */
+        DROP,
+        /** Queue up to the capacity, then make the parsing thread wait. */
+        BLOCK
+    }
+
+    /**
+     * Deliver on a new daemon thread of this listener's own, stopped by close().
+     * @param listener Listener to call.
+     * @param overflow What to do when it falls behind.
+     * @param capacity Positions queued before overflowing, rounded up to a power of two.
+     * Not used for COALESCE.
+     */
+    public AsyncGpsListener(NmeaParser.GpsListener listener, Overflow overflow, int capacity) {
+        this(listener, overflow, capacity, _newExecutor(listener), true);
+    }
+
+    /**
+     * @param listener Listener to call.
+     * @param overflow What to do when it falls behind.
+     * @param capacity Positions queued before overflowing, rounded up to a power of two.
+     * Not used for COALESCE.
+     * @param executor Runs the deliveries. It may be shared; this listener only ever has one
+     * task on it at a time.
+     */
+    public AsyncGpsListener(NmeaParser.GpsListener listener, Overflow overflow, int capacity, Executor executor) {
+        this(listener, overflow, capacity, executor, false);
+    }
+
+    private AsyncGpsListener(NmeaParser.GpsListener listener, Overflow overflow, int capacity, Executor executor,
+                             boolean ownExecutor) {
+        mListener = listener;
+        mOwnExecutor = ownExecutor;
+        mOverflow = overflow;
+        mExecutor = executor;
+        int size = overflow == Overflow.COALESCE ? 3 : Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        NMEA.GPSPosition[] slots = new NMEA.GPSPosition[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new NMEA.GPSPosition();
+        }
+        mSlots = slots;
+        mRing = overflow == Overflow.COALESCE ? null : new SpscRing<NMEA.GPSPosition>(slots);
+    }
+
+    /**
+     * Queue a copy of the position for the listener. Called on the parsing thread.
+     */
+    public void onGpsPosition(NMEA.GPSPosition gps) {
+        if (mClosed) {
+            return;
+        }
+        if (mRing == null) {
+            // Triple buffer: fill the back slot, then swap it with the middle one.
+            mSlots[mBack].set(gps);
+            int previous = mMiddle.getAndSet(mBack | DIRTY);
+            mBack = previous & INDEX;
+            if ((previous & DIRTY) != 0) {
+                mDropped.incrementAndGet();
+            }
+        } else {
+            NMEA.GPSPosition slot;
+            while ((slot = mRing.claim()) == null) {
+                if (mOverflow != Overflow.BLOCK) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                _schedule();
+                LockSupport.parkNanos(BLOCK_WAIT_NS);
+                if (mClosed) {
+                    return;
+                }
+            }
+            slot.set(gps);
+            mRing.publish();
+        }
+        _schedule();
+    }
+
+    /**
+     * @return the listener positions are delivered to.
+     */
+    public NmeaParser.GpsListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return number of positions waiting to be delivered.
+     */
+    public int getQueueDepth() {
+        if (mRing == null) {
+            return (mMiddle.get() & DIRTY) != 0 ? 1 : 0;
+        }
+        return mRing.size();
+    }
+
+    /**
+     * @return number of positions dropped, or replaced by a later one when coalescing.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return number of positions delivered to the listener.
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * Stop queueing positions. Those already queued are delivered before this returns: it waits
+     * for a delivery in progress on the executor, then delivers the rest on the calling thread.
+     * Called from the listener itself, the running delivery finishes the queue instead.
+     * The thread created by the three argument constructor is stopped; an executor passed in is
+     * left running.
+     */
+    public void close() {
+        mClosed = true;
+        if (Thread.currentThread() == mDrainThread) {
+            return;
+        }
+        while (!mScheduled.compareAndSet(false, true)) {
+            LockSupport.parkNanos(BLOCK_WAIT_NS);
+        }
+        // Holding the schedule for good, so nothing more is queued on the executor.
+        while (_deliverNext()) {
+            // Deliver everything still queued.
+        }
+        if (mOwnExecutor) {
+            ((ExecutorService) mExecutor).shutdown();
+        }
+    }
+
+    /**
+     * Make sure a drain task is queued on the executor.
+     */
+    private void _schedule() {
+        if (!mScheduled.get() && mScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+            }
+        }
+    }
+
+    private void _drain() {
+        mDrainThread = Thread.currentThread();
+        int delivered = 0;
+        try {
+            while (delivered < MAX_PER_RUN && _deliverNext()) {
+                delivered++;
+            }
+            if (mClosed) {
+                // Finish here rather than queue another run which close() may have shut out.
+                while (_deliverNext()) {
+                    // Deliver everything still queued.
+                }
+                delivered = 0;
+                if (mOwnExecutor) {
+                    ((ExecutorService) mExecutor).shutdown();
+                }
+            }
+        } finally {
+            mDrainThread = null;
+        }
+        if (delivered == MAX_PER_RUN) {
+            // Let other tasks on a shared executor have a turn.
+            try {
+                mExecutor.execute(mDrain);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Fall through and give up the schedule.
+            }
+        }
+        mScheduled.set(false);
+        if (getQueueDepth() > 0) {
+            _schedule();
+        }
+    }
+
+    /**
+     * @return false if nothing was waiting.
+     */
+    private boolean _deliverNext() {
+        NMEA.GPSPosition position;
+        if (mRing == null) {
+            if ((mMiddle.get() & DIRTY) == 0) {
+                return false;
+            }
+            mFront = mMiddle.getAndSet(mFront) & INDEX;
+            position = mSlots[mFront];
+        } else {
+            position = mRing.peek();
+            if (position == null) {
+                return false;
+            }
+        }
+        try {
+            mListener.onGpsPosition(position);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (mRing != null) {
+                mRing.release();
+            }
+        }
+        mDelivered.incrementAndGet();
+        return true;
+    }
+
+    private static ExecutorService _newExecutor(final NmeaParser.GpsListener listener) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncGpsListener-" + listener.getClass().getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static final int MAX_PER_RUN = 256;
+    private static final int INDEX = 3;
+    private static final int DIRTY = 4;
+    private static final long BLOCK_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final NmeaParser.GpsListener mListener;
+    private final Overflow mOverflow;
+    private final Executor mExecutor;
+    private final NMEA.GPSPosition[] mSlots;
+    private final SpscRing<NMEA.GPSPosition> mRing;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            _drain();
+        }
+    };
+    private final boolean mOwnExecutor;
+    private volatile boolean mClosed;
+    private volatile Thread mDrainThread;
+    // Triple buffer for COALESCE: the producer owns mBack, the consumer mFront, and mMiddle
+    // holds the third slot's index with DIRTY set when it has not been delivered.
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mBack = 0;
+    private int mFront = 2;
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ground covered by the implement, as a grid of cells in a local plane around the first fix, so
+ * that whether a point or the implement's bar is over worked ground is answered by looking up a
+ * few cells rather than scanning the track.
+ * Cells are held in 64 by 64 tiles, created as the implement reaches them, each a bitset of one
+ * long per row. Each interval between fixes marks the cells whose centres lie in the rectangle
+ * swept by the bar. Marking is a compare and set on the row and tiles are added with
+ * putIfAbsent, so queries need no lock and can run on any thread while fixes are added.
+ * Intervals are only marked once the implement is lag metres past them, so the ground it has
+ * just covered does not count as already worked under it. Fixes must be added from one thread
+ * at a time, e.g. the parser's.
+ */
+public class CoverageIndex implements NmeaParser.GpsListener, NmeaParser.BatchListener {
+
+    /**
+     * Lag by the implement width and ignore gaps over 5s.
+     * @param implementWidth Working width in metres.
+     * @param cellSize Side of a cell in metres.
+     */
+    public CoverageIndex(double implementWidth, double cellSize) {
+        this(implementWidth, cellSize, implementWidth, 5000000);
+    }
+
+    /**
+     * @param implementWidth Working width in metres.
+     * @param cellSize Side of a cell in metres.
+     * @param lagMetres Distance the implement travels past an interval before it is marked.
+     * @param maxGapMicros Longest interval between fixes which is marked.
+     */
+    public CoverageIndex(double implementWidth, double cellSize, double lagMetres, long maxGapMicros) {
+        mHalfWidth = implementWidth / 2;
+        mCellSize = cellSize;
+        mLag = lagMetres;
+        mMaxGapMicros = maxGapMicros;
+    }
+
+    public void onGpsPosition(NMEA.GPSPosition gps) {
+        add(gps.getLat(), gps.getLon(), NMEA.toMicros(gps.getTime()), gps.quality);
+    }
+
+    public void onFixBatch(FixBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.lat[i], batch.lon[i], batch.timeMicros[i], batch.quality[i]);
+        }
+    }
+
+    /**
+     * Add a fix of the implement's centre. Fixes without a fix quality, or older than the last,
+     * are ignored.
+     * @param timeMicros UTC time of day in microseconds.
+     */
+    public void add(double lat, double lon, long timeMicros, int quality) {
+        if (quality <= 0) {
+            return;
+        }
+        long time = NMEA.continuous(timeMicros, mLastMicros);
+        if (time < mLastMicros) {
+            return;
+        }
+        if (!mHaveOrigin) {
+            mOriginLat = lat;
+            mOriginLon = lon;
+            mOriginCos = Math.cos(Math.toRadians(lat));
+            mHaveOrigin = true;
+        }
+        if (mPendingCount > 0 && time - mLastMicros > mMaxGapMicros) {
+            flush();
+            mPendingCount = 0;
+        }
+        mLastMicros = time;
+        double x = _x(lon);
+        double y = _y(lat);
+        int newest = (mPendingHead + mPendingCount) % PENDING;
+        if (mPendingCount == 0) {
+            mPendingDistance[newest] = 0;
+        } else {
+            int last = (newest + PENDING - 1) % PENDING;
+            mPendingDistance[newest] = mPendingDistance[last]
+                    + Math.hypot(x - mPendingX[last], y - mPendingY[last]);
+        }
+        mPendingX[newest] = x;
+        mPendingY[newest] = y;
+        mPendingCount++;
+        while (mPendingCount > 1) {
+            int next = (mPendingHead + 1) % PENDING;
+            if (mPendingCount < PENDING && mPendingDistance[newest] - mPendingDistance[next] < mLag) {
+                break;
+            }
+            _mark(mPendingX[mPendingHead], mPendingY[mPendingHead], mPendingX[next], mPendingY[next]);
+            mPendingHead = next;
+            mPendingCount--;
+        }
+    }
+
+    /**
+     * Mark every interval still lagging, e.g. at the end of a pass.
+     */
+    public void flush() {
+        while (mPendingCount > 1) {
+            int next = (mPendingHead + 1) % PENDING;
+            _mark(mPendingX[mPendingHead], mPendingY[mPendingHead], mPendingX[next], mPendingY[next]);
+            mPendingHead = next;
+            mPendingCount--;
+        }
+    }
+
+    /**
+     * Mark the cells whose centres lie within the bar's half width of the segment, between the
+     * lines through its ends square to it. For each row the two conditions bound the centres'
+     * x to an interval, so the row's cells are set a word at a time.
+     */
+    private void _mark(double x0, double y0, double x1, double y1) {
+        double ex = x1 - x0;
+        double ey = y1 - y0;
+        double length2 = ex * ex + ey * ey;
+        if (length2 == 0) {
+            return;
+        }
+        double across = mHalfWidth * Math.sqrt(length2);
+        int minY = _cell(Math.min(y0, y1) - mHalfWidth);
+        int maxY = _cell(Math.max(y0, y1) + mHalfWidth);
+        for (int cy = minY; cy <= maxY; cy++) {
+            double py = (cy + 0.5) * mCellSize - y0;
+            // 0 <= px * ex + py * ey <= length2 and -across <= px * ey - py * ex <= across
+            double low = Double.NEGATIVE_INFINITY;
+            double high = Double.POSITIVE_INFINITY;
+            if (ex != 0) {
+                double a = -py * ey / ex;
+                double b = (length2 - py * ey) / ex;
+                low = Math.min(a, b);
+                high = Math.max(a, b);
+            } else if (py * ey < 0 || py * ey > length2) {
+                continue;
+            }
+            if (ey != 0) {
+                double a = (py * ex - across) / ey;
+                double b = (py * ex + across) / ey;
+                low = Math.max(low, Math.min(a, b));
+                high = Math.min(high, Math.max(a, b));
+            } else if (Math.abs(py * ex) > across) {
+                continue;
+            }
+            int from = (int) Math.ceil((x0 + low) / mCellSize - 0.5);
+            int to = (int) Math.floor((x0 + high) / mCellSize - 0.5);
+            if (from <= to) {
+                _set(cy, from, to);
+            }
+        }
+    }
+
+    /**
+     * Set cells from to to inclusive of row cy.
+     */
+    private void _set(int cy, int from, int to) {
+        int row = cy & TILE_MASK;
+        for (int tileX = from >> TILE_SHIFT; tileX <= to >> TILE_SHIFT; tileX++) {
+            int first = Math.max(from, tileX << TILE_SHIFT) & TILE_MASK;
+            int last = Math.min(to, (tileX << TILE_SHIFT) + TILE_MASK) & TILE_MASK;
+            long bits = (-1L >>> (TILE_MASK - last)) & (-1L << first);
+            AtomicLongArray tile = _tile(tileX, cy >> TILE_SHIFT);
+            long old;
+            do {
+                old = tile.get(row);
+                if ((old & bits) == bits) {
+                    break;
+                }
+            } while (!tile.compareAndSet(row, old, old | bits));
+            int added = Long.bitCount(bits & ~old);
+            if (added > 0) {
+                mCovered.addAndGet(added);
+            }
+        }
+    }
+
+    private AtomicLongArray _tile(int tileX, int tileY) {
+        Long key = _key(tileX, tileY);
+        AtomicLongArray tile = mTiles.get(key);
+        if (tile == null) {
+            AtomicLongArray created = new AtomicLongArray(TILE_CELLS);
+            tile = mTiles.putIfAbsent(key, created);
+            if (tile == null) {
+                tile = created;
+            }
+        }
+        return tile;
+    }
+
+    private boolean _get(int cx, int cy) {
+        AtomicLongArray tile = mTiles.get(_key(cx >> TILE_SHIFT, cy >> TILE_SHIFT));
+        return tile != null && (tile.get(cy & TILE_MASK) & (1L << (cx & TILE_MASK))) != 0;
+    }
+
+    private static Long _key(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xffffffffL);
+    }
+
+    private int _cell(double metres) {
+        return (int) Math.floor(metres / mCellSize);
+    }
+
+    private double _x(double lon) {
+        return Math.toRadians(lon - mOriginLon) * EARTH_RADIUS * mOriginCos;
+    }
+
+    private double _y(double lat) {
+        return Math.toRadians(lat - mOriginLat) * EARTH_RADIUS;
+    }
+
+    /**
+     * @return true if the point is on worked ground.
+     */
+    public boolean isCovered(double lat, double lon) {
+        if (!mHaveOrigin) {
+            return false;
+        }
+        return _get(_cell(_x(lon)), _cell(_y(lat)));
+    }
+
+    /**
+     * @param lat Latitude of the centre of the bar.
+     * @param lon Longitude of the centre of the bar.
+     * @param dir Direction of travel in degrees, e.g. the fix's course over ground.
+     * @param width Length of the bar in metres.
+     * @return fraction from 0 to 1 of a bar square to the direction of travel which is over worked
+     * ground, sampled once a cell along it.
+     */
+    public double getCoverage(double lat, double lon, float dir, double width) {
+        if (!mHaveOrigin) {
+            return 0;
+        }
+        double x = _x(lon);
+        double y = _y(lat);
+        // Unit vector to the right of the direction of travel, which is clockwise from north.
+        double rightX = Math.cos(Math.toRadians(dir));
+        double rightY = -Math.sin(Math.toRadians(dir));
+        int samples = Math.max(1, (int) Math.ceil(width / mCellSize));
+        int covered = 0;
+        for (int i = 0; i < samples; i++) {
+            double offset = (i + 0.5) * width / samples - width / 2;
+            if (_get(_cell(x + offset * rightX), _cell(y + offset * rightY))) {
+                covered++;
+            }
+        }
+        return covered / (double) samples;
+    }
+
+    /**
+     * @return square metres of worked ground.
+     */
+    public double getCoveredArea() {
+        return mCovered.get() * mCellSize * mCellSize;
+    }
+
+    public int getTileCount() {
+        return mTiles.size();
+    }
+
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_CELLS = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_CELLS - 1;
+    private static final int PENDING = 1024;
+
+    private final double mHalfWidth;
+    private final double mCellSize;
+    private final double mLag;
+    private final long mMaxGapMicros;
+    private final ConcurrentHashMap<Long, AtomicLongArray> mTiles = new ConcurrentHashMap<Long, AtomicLongArray>();
+    private final AtomicLong mCovered = new AtomicLong();
+
+    // Written once by the adding thread before mHaveOrigin, which publishes them to queries.
+    private double mOriginLat;
+    private double mOriginLon;
+    private double mOriginCos;
+    private volatile boolean mHaveOrigin;
+
+    // Only touched by the adding thread.
+    private long mLastMicros = -1;
+    private final double[] mPendingX = new double[PENDING];
+    private final double[] mPendingY = new double[PENDING];
+    private final double[] mPendingDistance = new double[PENDING];
+    private int mPendingHead;
+    private int mPendingCount;
+}
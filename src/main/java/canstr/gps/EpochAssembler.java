@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * Merges the sentences a receiver sends for one epoch (GGA, RMC, VTG, ... sharing a time tag)
+ * into a single fix, so listeners are called once per epoch with a complete position rather than
+ * after every sentence with a half updated one.
+ * An epoch is complete once sentences carrying all the required fields have arrived, or
+ * otherwise when the next epoch starts (or flush() is called). Sentences without a time, such
+ * as VTG, join the current epoch. Sentences arriving for an epoch already emitted update the
+ * merged position but do not emit it again.
+ * Optionally, complete fixes are only passed on when they differ enough from the last one
+ * passed on (a deadband on distance, heading and speed), and no more often than a minimum
+ * interval of fix time.
+ * Set with NmeaParser.setEpochAssembler(); it is then called on the parsing thread.
+ */
+public class EpochAssembler {
+
+    /**
+     * Emit each epoch when the next one starts.
+     */
+    public EpochAssembler() {
+        this(0);
+    }
+
+    /**
+     * @param requiredFields NMEA.FIELD_* bits which complete an epoch as soon as they have all
+     * arrived, e.g. those of GGA and RMC; 0 to always wait for the next epoch.
+     */
+    public EpochAssembler(int requiredFields) {
+        mRequired = requiredFields;
+    }
+
+    /**
+     * Only pass on a fix which has moved at least metres from the last one passed on, turned at
+     * least degrees, or changed speed by at least knots, or whose fix quality changed.
+     * A threshold of 0 or less is not checked; all of them 0 turns the deadband off.
+     */
+    public void setDeadband(double metres, float degrees, float knots) {
+        mDeadbandMetres = metres;
+        mDeadbandDegrees = degrees;
+        mDeadbandKnots = knots;
+    }
+
+    /**
+     * Pass on at most one fix per interval of fix time, e.g. 200000 to decimate 10Hz to 5Hz.
+     * @param micros minimum interval, or 0 for none.
+     */
+    public void setMinInterval(long micros) {
+        mMinIntervalMicros = micros;
+    }
+
+    public void addGpsListener(NmeaParser.GpsListener listener) {
+        synchronized (this) {
+            NmeaParser.GpsListener[] listeners = new NmeaParser.GpsListener[mListeners.length + 1];
+            System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+            listeners[mListeners.length] = listener;
+            mListeners = listeners;
+        }
+    }
+
+    public void removeGpsListener(NmeaParser.GpsListener listener) {
+        synchronized (this) {
+            int count = 0;
+            NmeaParser.GpsListener[] listeners = new NmeaParser.GpsListener[mListeners.length];
+            for (NmeaParser.GpsListener existing : mListeners) {
+                if (existing != listener) {
+                    listeners[count++] = existing;
+                }
+            }
+            NmeaParser.GpsListener[] trimmed = new NmeaParser.GpsListener[count];
+            System.arraycopy(listeners, 0, trimmed, 0, count);
+            mListeners = trimmed;
+        }
+    }
+
+    /**
+     * Merge a decoded sentence into the current epoch.
+     * @param gps position as updated by the sentence.
+     * @param fields NMEA.FIELD_* bits the sentence carries.
+     */
+    public void onSentence(NMEA.GPSPosition gps, int fields) {
+        if ((fields & NMEA.FIELD_TIME) != 0 && mHave != 0 && gps.getTime() != mEpoch.getTime()) {
+            if (!mEmitted) {
+                _complete();
+            }
+            mHave = 0;
+            mEmitted = false;
+        }
+        mEpoch.set(gps);
+        mHave |= fields;
+        if (!mEmitted && mRequired != 0 && (mHave & mRequired) == mRequired) {
+            _complete();
+        }
+    }
+
+    /**
+     * Complete the current epoch now, e.g. at the end of a log.
+     */
+    public void flush() {
+        if (mHave != 0 && !mEmitted) {
+            _complete();
+        }
+    }
+
+    /**
+     * @return number of epochs completed.
+     */
+    public long getEpochCount() {
+        return mEpochs;
+    }
+
+    /**
+     * @return number of complete fixes passed on to listeners.
+     */
+    public long getEmittedCount() {
+        return mEmittedCount;
+    }
+
+    /**
+     * @return number of complete fixes held back by the deadband or minimum interval.
+     */
+    public long getSuppressedCount() {
+        return mEpochs - mEmittedCount;
+    }
+
+    private void _complete() {
+        mEmitted = true;
+        mEpochs++;
+        if (mHaveLast && !_changedEnough()) {
+            return;
+        }
+        mLast.set(mEpoch);
+        mHaveLast = true;
+        mEmittedCount++;
+        for (NmeaParser.GpsListener listener : mListeners) {
+            listener.onGpsPosition(mEpoch);
+        }
+    }
+
+    /**
+     * @return true if the epoch passes the minimum interval and the deadband, compared with the
+     * last fix passed on.
+     */
+    private boolean _changedEnough() {
+        if (mMinIntervalMicros > 0) {
+            long last = NMEA.toMicros(mLast.getTime());
+            long elapsed = NMEA.continuous(NMEA.toMicros(mEpoch.getTime()), last) - last;
+            if (elapsed < mMinIntervalMicros) {
+                return false;
+            }
+        }
+        if (mDeadbandMetres <= 0 && mDeadbandDegrees <= 0 && mDeadbandKnots <= 0) {
+            return true;
+        }
+        if (mEpoch.quality != mLast.quality || mEpoch.fixed != mLast.fixed) {
+            return true;
+        }
+        if (mDeadbandMetres > 0) {
+            // Equirectangular distance, plenty for the few metres a deadband spans.
+            double north = Math.toRadians(mEpoch.getLat() - mLast.getLat()) * EARTH_RADIUS;
+            double east = Math.toRadians(mEpoch.getLon() - mLast.getLon()) * EARTH_RADIUS
+                    * Math.cos(Math.toRadians(mEpoch.getLat()));
+            if (north * north + east * east >= mDeadbandMetres * mDeadbandMetres) {
+                return true;
+            }
+        }
+        if (mDeadbandDegrees > 0) {
+            float turn = Math.abs(mEpoch.dir - mLast.dir) % 360;
+            if (Math.min(turn, 360 - turn) >= mDeadbandDegrees) {
+                return true;
+            }
+        }
+        return mDeadbandKnots > 0 && Math.abs(mEpoch.velocity - mLast.velocity) >= mDeadbandKnots;
+    }
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private final int mRequired;
+    private volatile NmeaParser.GpsListener[] mListeners = new NmeaParser.GpsListener[0];
+    private final NMEA.GPSPosition mEpoch = new NMEA.GPSPosition();
+    private final NMEA.GPSPosition mLast = new NMEA.GPSPosition();
+    private int mHave;
+    private boolean mEmitted;
+    private boolean mHaveLast;
+    private double mDeadbandMetres;
+    private float mDeadbandDegrees;
+    private float mDeadbandKnots;
+    private long mMinIntervalMicros;
+    private long mEpochs;
+    private long mEmittedCount;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * A batch of fixes held column by column in primitive arrays, so bulk consumers can run over
+ * them without touching a per fix object.
+ * Row i of the batch is lat[i], lon[i], timeMicros[i], etc. for i below size().
+ */
+public class FixBatch {
+
+    /**
+     * @param capacity Rows the batch holds, at least 1.
+     */
+    public FixBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity must be positive: " + capacity);
+        }
+        lat = new double[capacity];
+        lon = new double[capacity];
+        timeMicros = new long[capacity];
+        speed = new float[capacity];
+        dir = new float[capacity];
+        altitude = new float[capacity];
+        quality = new byte[capacity];
+    }
+
+    /**
+     * Append a row copied from the position.
+     * @return true if the batch is now full.
+     */
+    public boolean add(NMEA.GPSPosition gps) {
+        int i = mSize;
+        lat[i] = gps.getLat();
+        lon[i] = gps.getLon();
+        timeMicros[i] = NMEA.toMicros(gps.getTime());
+        speed[i] = gps.velocity;
+        dir[i] = gps.dir;
+        altitude[i] = gps.altitude;
+        quality[i] = (byte) gps.quality;
+        mSize = i + 1;
+        return mSize == lat.length;
+    }
+
+    /**
+     * Append a row.
+     * @return true if the batch is now full.
+     */
+    public boolean add(double lat, double lon, long timeMicros, float speed, float dir, float altitude, int quality) {
+        int i = mSize;
+        this.lat[i] = lat;
+        this.lon[i] = lon;
+        this.timeMicros[i] = timeMicros;
+        this.speed[i] = speed;
+        this.dir[i] = dir;
+        this.altitude[i] = altitude;
+        this.quality[i] = (byte) quality;
+        mSize = i + 1;
+        return mSize == this.lat.length;
+    }
+
+    /**
+     * @return number of rows in the batch.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return lat.length;
+    }
+
+    /**
+     * @return a new batch holding just the rows of this one, e.g. to keep a batch passed to a
+     * BatchListener after it returns.
+     */
+    public FixBatch copy() {
+        FixBatch copy = new FixBatch(Math.max(1, mSize));
+        System.arraycopy(lat, 0, copy.lat, 0, mSize);
+        System.arraycopy(lon, 0, copy.lon, 0, mSize);
+        System.arraycopy(timeMicros, 0, copy.timeMicros, 0, mSize);
+        System.arraycopy(speed, 0, copy.speed, 0, mSize);
+        System.arraycopy(dir, 0, copy.dir, 0, mSize);
+        System.arraycopy(altitude, 0, copy.altitude, 0, mSize);
+        System.arraycopy(quality, 0, copy.quality, 0, mSize);
+        copy.mSize = mSize;
+        return copy;
+    }
+
+    /**
+     * Empty the batch so it can be filled again. The arrays are kept.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /** Latitude in decimal degrees, negative south. */
+    public final double[] lat;
+    /** Longitude in decimal degrees, negative west. */
+    public final double[] lon;
+    /** UTC time of day of the fix in microseconds since midnight. */
+    public final long[] timeMicros;
+    /** Speed over ground in knots. */
+    public final float[] speed;
+    /** Course over ground in degrees. */
+    public final float[] dir;
+    /** Altitude in metres. */
+    public final float[] altitude;
+    /** GGA fix quality. */
+    public final byte[] quality;
+
+    private int mSize;
+}
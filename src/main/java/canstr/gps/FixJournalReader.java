@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * Replays a journal written by FixJournalWriter straight to GpsListeners, with no NMEA parsing.
+ * A block with a damaged header, a CRC which does not match, or cut short by the end of the
+ * file is skipped and counted. The reader then scans from just after that block's sync marker
+ * for the next one, and as every block starts with a keyframe replay carries on from there.
+ */
+public class FixJournalReader implements Closeable {
+
+    public FixJournalReader(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in, 64 * 1024);
+        for (int i = 0; i < FixJournalWriter.MAGIC.length - 1; i++) {
+            if (mIn.read() != FixJournalWriter.MAGIC[i]) {
+                throw new IOException("Not a fix journal");
+            }
+        }
+        int version = mIn.read();
+        if (version != FixJournalWriter.MAGIC[FixJournalWriter.MAGIC.length - 1]) {
+            throw new IOException("Unsupported fix journal version " + version);
+        }
+    }
+
+    /**
+     * Read the rest of the journal, handing each fix to the listener. The position passed is
+     * reused for every fix.
+     * @return number of fixes delivered.
+     */
+    public long replay(NmeaParser.GpsListener listener) throws IOException {
+        long delivered = 0;
+        boolean skipping = false;
+        int skipped;
+        while ((skipped = _sync()) >= 0) {
+            if (skipped > 0 && !skipping) {
+                // Damage before this marker which no failed block accounts for, e.g. to a marker.
+                mCorruptBlocks++;
+            }
+            mIn.mark(BLOCK_LIMIT);
+            int count = _readBlock();
+            if (count < 0) {
+                if (!skipping) {
+                    mCorruptBlocks++;
+                }
+                skipping = true;
+                mIn.reset();
+                continue;
+            }
+            skipping = false;
+            delivered += _replayBlock(count, mLength, listener);
+        }
+        return delivered;
+    }
+
+    /**
+     * Read up to and including the next sync marker.
+     * @return number of bytes skipped before it, or -1 at the end of the file.
+     */
+    private int _sync() throws IOException {
+        byte[] sync = FixJournalWriter.SYNC;
+        int matched = 0;
+        int skipped = 0;
+        while (matched < sync.length) {
+            int b = mIn.read();
+            if (b < 0) {
+                return -1;
+            }
+            if (b == (sync[matched] & 0xff)) {
+                matched++;
+            } else {
+                // The marker has no repeated prefix, so a mismatch can only restart it.
+                skipped += matched + 1;
+                matched = b == (sync[0] & 0xff) ? 1 : 0;
+                if (matched == 1) {
+                    skipped--;
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Read a block's header, payload and CRC after its marker.
+     * @return the block's fix count, or -1 if the block is damaged or cut short.
+     */
+    private int _readBlock() throws IOException {
+        int count = _readVarint();
+        if (count <= 0) {
+            return -1;
+        }
+        int length = _readVarint();
+        // Every row takes at least its flags byte.
+        if (length < count || length > FixJournalWriter.MAX_PAYLOAD) {
+            return -1;
+        }
+        if (mPayload.length < length) {
+            mPayload = new byte[Math.max(length, mPayload.length * 2)];
+        }
+        if (!_readFully(mPayload, length)) {
+            return -1;
+        }
+        long crc = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = mIn.read();
+            if (b < 0) {
+                return -1;
+            }
+            crc = (crc << 8) | b;
+        }
+        if (FixJournalWriter.blockCrc(mCrc, count, length, mPayload) != crc) {
+            return -1;
+        }
+        mLength = length;
+        return count;
+    }
+
+    /**
+     * @return number of damaged stretches skipped, each losing one or more blocks.
+     */
+    public long getCorruptBlockCount() {
+        return mCorruptBlocks;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private int _replayBlock(int count, int length, NmeaParser.GpsListener listener) throws IOException {
+        long[] values = mValues;
+        for (int i = 0; i < FixJournalWriter.VALUES; i++) {
+            values[i] = 0;
+        }
+        mAt = 0;
+        NMEA.GPSPosition gps = mPosition;
+        for (int row = 0; row < count; row++) {
+            if (mAt >= length) {
+                throw new IOException("Corrupt fix journal block");
+            }
+            int flags = mPayload[mAt++] & 0xff;
+            for (int i = 0; i < FixJournalWriter.VALUES; i++) {
+                if ((flags & (1 << i)) != 0) {
+                    long zigzag = _decodeVarint(length);
+                    values[i] += (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            gps.setTime(NMEA.fromMicros(values[FixJournalWriter.TIME] * 1000));
+            gps.setLat(values[FixJournalWriter.LAT] / FixJournalWriter.LATLON_SCALE);
+            gps.setLon(values[FixJournalWriter.LON] / FixJournalWriter.LATLON_SCALE);
+            gps.altitude = (float) (values[FixJournalWriter.ALTITUDE] / FixJournalWriter.HUNDREDTHS);
+            gps.velocity = (float) (values[FixJournalWriter.VELOCITY] / FixJournalWriter.HUNDREDTHS);
+            gps.dir = (float) (values[FixJournalWriter.DIR] / FixJournalWriter.HUNDREDTHS);
+            gps.quality = (int) values[FixJournalWriter.QUALITY];
+            gps.updatefix();
+            listener.onGpsPosition(gps);
+        }
+        return count;
+    }
+
+    private long _decodeVarint(int length) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mAt >= length) {
+                throw new IOException("Corrupt fix journal block");
+            }
+            byte b = mPayload[mAt++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt fix journal varint");
+    }
+
+    /**
+     * @return the value, or -1 at the end of the file or if it is not a valid varint.
+     */
+    private int _readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                // Past 31 bits the value has overflowed into the sign.
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return false if the file ends first.
+     */
+    private boolean _readFully(byte[] dst, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = mIn.read(dst, read, length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    // Bytes after a marker which may need to be read again if its block is damaged.
+    private static final int BLOCK_LIMIT = FixJournalWriter.MAX_PAYLOAD + 16;
+
+    private final InputStream mIn;
+    private final CRC32 mCrc = new CRC32();
+    private final long[] mValues = new long[FixJournalWriter.VALUES];
+    private final NMEA.GPSPosition mPosition = new NMEA.GPSPosition();
+    private byte[] mPayload = new byte[4096];
+    private int mAt;
+    private int mLength;
+    private long mCorruptBlocks;
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * Records decoded fixes in a compact binary journal, as an alternative to logging NMEA text.
+ * Register it with NmeaParser for NMEA.FIELD_LAT | NMEA.FIELD_LON, or as the batch listener,
+ * so that it records one row per position sentence. FixJournalReader replays the journal.
+ *
+ * Each fix is stored as fixed point integers: time of day in ms, lat and lon in 1e-7 degrees
+ * (about 1cm), altitude in cm, velocity in 0.01 knots, dir in 0.01 degrees and quality.
+ * Fixes are grouped in blocks. The first row of a block is a keyframe holding absolute values,
+ * every other row holds the difference from the row before. A row starts with a byte flagging
+ * which values changed, followed by just those differences as zigzag varints, so a stationary
+ * fix costs one byte and a moving one around ten, against ~70 bytes of NMEA.
+ *
+ * File: "CFJ" version(2), then blocks of
+ *   4 byte SYNC marker, varint fixCount, varint payloadLength, payload,
+ *   4 byte big endian CRC32 of fixCount and payloadLength (as 4 byte big endian ints) and payload.
+ * The marker lets a reader find the next block after any damage, even to a block's header.
+ * A block holds at most MAX_PAYLOAD bytes of rows.
+ */
+public class FixJournalWriter implements NmeaParser.GpsListener, NmeaParser.BatchListener, Closeable {
+
+    public FixJournalWriter(OutputStream out) {
+        this(out, 256);
+    }
+
+    /**
+     * @param out Stream to write the journal to; buffering is done here.
+     * @param fixesPerBlock Fixes between keyframes, at least 1. Larger blocks compress slightly
+     *                      better, smaller ones lose less to a corrupt block.
+     */
+    public FixJournalWriter(OutputStream out, int fixesPerBlock) {
+        if (fixesPerBlock <= 0) {
+            throw new IllegalArgumentException("Fixes per block must be positive: " + fixesPerBlock);
+        }
+        mOut = out;
+        mFixesPerBlock = fixesPerBlock;
+        _write(MAGIC, 0, MAGIC.length);
+    }
+
+    public void onGpsPosition(NMEA.GPSPosition gps) {
+        _append(NMEA.toMicros(gps.getTime()), gps.getLat(), gps.getLon(), gps.altitude, gps.velocity, gps.dir, gps.quality);
+    }
+
+    public void onFixBatch(FixBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            _append(batch.timeMicros[i], batch.lat[i], batch.lon[i], batch.altitude[i], batch.speed[i],
+                    batch.dir[i], batch.quality[i]);
+        }
+    }
+
+    /**
+     * End the current block and write it out, so everything recorded so far can be read back.
+     */
+    public void flush() {
+        if (mCount == 0) {
+            return;
+        }
+        long crc = blockCrc(mCrc, mCount, mPayloadLength, mPayload);
+        _write(SYNC, 0, SYNC.length);
+        int header = 0;
+        header = _varint(mHeader, header, mCount);
+        header = _varint(mHeader, header, mPayloadLength);
+        _write(mHeader, 0, header);
+        _write(mPayload, 0, mPayloadLength);
+        mHeader[0] = (byte) (crc >>> 24);
+        mHeader[1] = (byte) (crc >>> 16);
+        mHeader[2] = (byte) (crc >>> 8);
+        mHeader[3] = (byte) crc;
+        _write(mHeader, 0, 4);
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mCount = 0;
+        mPayloadLength = 0;
+        for (int i = 0; i < VALUES; i++) {
+            mPrevious[i] = 0;
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        mOut.close();
+    }
+
+    /**
+     * @return number of fixes recorded.
+     */
+    public long getFixCount() {
+        return mFixes;
+    }
+
+    private void _append(long timeMicros, double lat, double lon, double altitude, double velocity,
+                         double dir, int quality) {
+        long[] values = mValues;
+        values[TIME] = timeMicros / 1000;
+        values[LAT] = Math.round(lat * LATLON_SCALE);
+        values[LON] = Math.round(lon * LATLON_SCALE);
+        values[ALTITUDE] = Math.round(altitude * HUNDREDTHS);
+        values[VELOCITY] = Math.round(velocity * HUNDREDTHS);
+        values[DIR] = Math.round(dir * HUNDREDTHS);
+        values[QUALITY] = quality;
+
+        if (mPayload.length - mPayloadLength < MAX_ROW) {
+            byte[] payload = new byte[mPayload.length * 2];
+            System.arraycopy(mPayload, 0, payload, 0, mPayloadLength);
+            mPayload = payload;
+        }
+        int flagsAt = mPayloadLength++;
+        int flags = 0;
+        for (int i = 0; i < VALUES; i++) {
+            long delta = values[i] - mPrevious[i];
+            if (delta != 0) {
+                flags |= 1 << i;
+                mPayloadLength = _varint(mPayload, mPayloadLength, (delta << 1) ^ (delta >> 63));
+                mPrevious[i] = values[i];
+            }
+        }
+        mPayload[flagsAt] = (byte) flags;
+        mFixes++;
+        if (++mCount == mFixesPerBlock || mPayloadLength >= MAX_PAYLOAD - MAX_ROW) {
+            flush();
+        }
+    }
+
+    /**
+     * @return CRC32 of a block's fix count, payload length and payload.
+     */
+    static long blockCrc(CRC32 crc, int count, int length, byte[] payload) {
+        crc.reset();
+        crc.update(count >>> 24);
+        crc.update(count >>> 16);
+        crc.update(count >>> 8);
+        crc.update(count);
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(payload, 0, length);
+        return crc.getValue();
+    }
+
+    private static int _varint(byte[] dst, int at, long value) {
+        while ((value & ~0x7fL) != 0) {
+            dst[at++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[at++] = (byte) value;
+        return at;
+    }
+
+    private void _write(byte[] data, int offset, int length) {
+        try {
+            mOut.write(data, offset, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static final byte[] MAGIC = new byte[] { 'C', 'F', 'J', 2 };
+    static final byte[] SYNC = new byte[] { (byte) 0xf1, 'x', (byte) 0xb7, 0x0a };
+    static final int MAX_PAYLOAD = 1024 * 1024;
+    static final int TIME = 0;
+    static final int LAT = 1;
+    static final int LON = 2;
+    static final int ALTITUDE = 3;
+    static final int VELOCITY = 4;
+    static final int DIR = 5;
+    static final int QUALITY = 6;
+    static final int VALUES = 7;
+    static final double LATLON_SCALE = 1e7;
+    static final double HUNDREDTHS = 100;
+    private static final int MAX_ROW = 1 + VALUES * 10;
+
+    private final OutputStream mOut;
+    private final int mFixesPerBlock;
+    private final CRC32 mCrc = new CRC32();
+    private final long[] mValues = new long[VALUES];
+    private final long[] mPrevious = new long[VALUES];
+    private final byte[] mHeader = new byte[20];
+    private byte[] mPayload = new byte[4096];
+    private int mPayloadLength;
+    private int mCount;
+    private long mFixes;
+}
@@ -32,46 +32,362 @@ package canstr.gps;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import canstr.file.AsyncFileLogger;
 import canstr.file.FileLogger;
 import canstr.parse.IPacket;
+import canstr.parse.PacketPool;
 import canstr.parse.SentenceParser;
+import canstr.util.PipelineMetrics;
+import es.agroguia.model.LazyFix;
 import es.agroguia.model.NMEA;
+import es.agroguia.model.NmeaFieldReader;
+import es.agroguia.model.SentenceRegistry;
 
 public class NmeaParser extends SentenceParser {
 
+    /**
+     * As before checksums were verified, every sentence is decoded whether or not it carries a
+     * valid '*hh' checksum. Use setChecksumMode(ChecksumMode.FLAG) to have sentences which fail
+     * the check logged but not decoded, or REJECT to drop them while framing.
+     */
     public NmeaParser() {
-        super();
-        nNmea = new NMEA();
+        this(NMEA.DEFAULT_REGISTRY, null);
+    }
+
+    /**
+     * Construct a parser which leases its packets from the given pool rather than allocating
+     * one per sentence.
+     * @param pool Pool shared by this parser's packets.
+     */
+    public NmeaParser(PacketPool pool) {
+        this(NMEA.DEFAULT_REGISTRY, pool);
+    }
+
+    /**
+     * @param registry Sentence parsers to decode with, e.g. to add proprietary sentences.
+     * @param pool Pool shared by this parser's packets, or null to allocate one per sentence.
+     */
+    public NmeaParser(SentenceRegistry registry, PacketPool pool) {
+        this(registry, pool, "\r");
+    }
+
+    /**
+     * @param registry Sentence parsers to decode with, e.g. to add proprietary sentences.
+     * @param pool Pool shared by this parser's packets, or null to allocate one per sentence.
+     * @param delimiter Line end which ends each sentence, "\r" or "\n" for logs without one.
+     */
+    public NmeaParser(SentenceRegistry registry, PacketPool pool, String delimiter) {
+        super(2048, delimiter, pool);
+        nNmea = new NMEA(registry);
+        mLazyFix = new LazyFix(registry);
+        _compilePlan();
     }
 
     @Override
     public void onPacket(IPacket packet)
     {
         NMEA.GPSPosition gps;
-        String line = packet.getString().trim();
-        LogToFile(line);
-        gps = nNmea.parse(line);
+        PipelineMetrics metrics = getMetrics();
+        boolean recording = metrics != null && metrics.isEnabled();
+        long start = 0;
+        if (recording) {
+            start = System.nanoTime();
+            metrics.record(PipelineMetrics.FRAMING, start - getArrivalNanos());
+        }
+        if (mLogging) {
+            LogToFile(packet.getString().trim());
+            if (recording) {
+                long logged = System.nanoTime();
+                metrics.record(PipelineMetrics.LOGGING, logged - start);
+                start = logged;
+            }
+        }
+        if (!packet.isValid()) {
+            return;
+        }
+        CharSequence chars = packet.getChars();
+        if (!lazyFixListeners.isEmpty() && mLazyFix.reset(chars)) {
+            for (LazyFixListener listener : lazyFixListeners) {
+                listener.onLazyFix(mLazyFix);
+            }
+        }
+        // Only pay for decoding sentences which somebody has subscribed to.
+        DecodePlan plan = mPlan;
+        int index = -1;
+        if (mAddress.reset(chars) && mAddress.next()) {
+            long address = mAddress.getCode();
+            index = nNmea.getRegistry().indexOf(address);
+            if (recording) {
+                metrics.countType(SentenceRegistry.isStandard(address) ? SentenceRegistry.typeOf(address) : address);
+            }
+        }
+        if (index < 0) {
+            if (recording) {
+                metrics.increment(PipelineMetrics.UNKNOWN_SENTENCES);
+            }
+            index = plan.listeners.length - 1;
+        }
+        GpsListener[] listeners = plan.listeners[index];
+        boolean all = !gpsListeners.isEmpty();
+        boolean batch = plan.batch[index];
+        boolean epoch = plan.epoch[index];
+        if (listeners.length == 0 && !all && !batch && !epoch) {
+            mSkippedSentences++;
+            return;
+        }
+        mDecodedSentences++;
+        gps = nNmea.parse(chars);
+        if (nNmea.hasNewPosition()) {
+            if (plan.projection != null) {
+                plan.projection.project(gps);
+            } else {
+                gps.easting = Double.NaN;
+                gps.northing = Double.NaN;
+            }
+        }
+        long decoded = 0;
+        if (recording) {
+            decoded = System.nanoTime();
+            metrics.record(PipelineMetrics.DECODE, decoded - start);
+        }
         if (gps != null) {
-            for (GpsListener listener : gpsListeners) {
+            if (all) {
+                for (GpsListener listener : gpsListeners) {
+                    listener.onGpsPosition(gps);
+                }
+            }
+            for (GpsListener listener : listeners) {
                 listener.onGpsPosition(gps);
             }
+            if (batch && nNmea.hasNewPosition()) {
+                _batch(plan, gps);
+            }
+            if (epoch) {
+                plan.assembler.onSentence(gps, nNmea.getRegistry().fieldsOf(index));
+            }
+        }
+        if (recording && (all || listeners.length > 0)) {
+            long delivered = System.nanoTime();
+            metrics.record(PipelineMetrics.LISTENERS, delivered - decoded);
+            metrics.record(PipelineMetrics.END_TO_END, delivered - getArrivalNanos());
         }
     }
 
+    /**
+     * Record into the metrics as SentenceParser does, along with sentence types and the time
+     * spent framing, logging, decoding and in listeners. The logger's drops are counted too.
+     */
+    @Override
+    public void setMetrics(PipelineMetrics metrics) {
+        super.setMetrics(metrics);
+        if (mLogger instanceof AsyncFileLogger) {
+            ((AsyncFileLogger) mLogger).setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Listen for every sentence, decoded in full. The listener is added to gpsListeners.
+     */
     public void addGpsListener(GpsListener listener) {
         gpsListeners.add(listener);
     }
 
+    /**
+     * Listen only for the sentences which carry any of the given fields, e.g.
+     * NMEA.FIELD_LAT | NMEA.FIELD_LON. Sentences carrying none of them are not decoded for this
+     * listener.
+     * @param fields NMEA.FIELD_* bits the listener uses.
+     */
+    public void addGpsListener(GpsListener listener, int fields) {
+        _subscribe(new Subscription(listener, fields, null));
+    }
+
+    /**
+     * Listen only for the given sentence types, such as "GGA", from any talker.
+     * @param sentenceTypes types as registered with the SentenceRegistry.
+     */
+    public void addGpsListener(GpsListener listener, String... sentenceTypes) {
+        long[] codes = new long[sentenceTypes.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = SentenceRegistry.code(sentenceTypes[i], 0, sentenceTypes[i].length());
+        }
+        _subscribe(new Subscription(listener, NMEA.FIELD_ALL, codes));
+    }
+
+    /**
+     * Listen for every sentence on the listener's own thread, so that it never holds up parsing
+     * or other listeners. Listeners may be added and removed while data is flowing.
+     * @param overflow What to do with positions when the listener falls behind.
+     * @param capacity Positions queued for the listener, unless coalescing.
+     * @return the wrapper queueing positions for the listener, e.g. for its queue depth.
+     */
+    public AsyncGpsListener addAsyncGpsListener(GpsListener listener, AsyncGpsListener.Overflow overflow,
+                                                int capacity) {
+        AsyncGpsListener async = new AsyncGpsListener(listener, overflow, capacity);
+        addGpsListener(async);
+        return async;
+    }
+
+    /**
+     * Stop a listener receiving positions, however it was added. A listener added with
+     * addAsyncGpsListener() has its thread stopped once its queue has drained.
+     */
+    public void removeGpsListener(GpsListener listener) {
+        for (int i = gpsListeners.size() - 1; i >= 0; i--) {
+            GpsListener subscribed = gpsListeners.get(i);
+            if (subscribed instanceof AsyncGpsListener
+                    && ((AsyncGpsListener) subscribed).getListener() == listener) {
+                ((AsyncGpsListener) subscribed).close();
+                gpsListeners.remove(i);
+            } else if (subscribed == listener) {
+                gpsListeners.remove(i);
+            }
+        }
+        synchronized (mPlanLock) {
+            for (int i = subscriptions.size() - 1; i >= 0; i--) {
+                GpsListener subscribed = subscriptions.get(i).listener;
+                if (subscribed instanceof AsyncGpsListener
+                        && ((AsyncGpsListener) subscribed).getListener() == listener) {
+                    ((AsyncGpsListener) subscribed).close();
+                    subscriptions.remove(i);
+                } else if (subscribed == listener) {
+                    subscriptions.remove(i);
+                }
+            }
+            _compilePlan();
+        }
+    }
+
+    /**
+     * @return number of sentences not decoded because nobody subscribed to them.
+     */
+    public long getSkippedSentenceCount() {
+        return mSkippedSentences;
+    }
+
+    /**
+     * @return number of sentences decoded for subscribers.
+     */
+    public long getDecodedSentenceCount() {
+        return mDecodedSentences;
+    }
+
     public interface GpsListener {
         void onGpsPosition(NMEA.GPSPosition gps);
     }
 
+    /**
+     * Collect fixes into a FixBatch of the given capacity, handing it to the listener each time it
+     * fills. A row is added for every sentence carrying a position. Any partially filled batch
+     * for a previous listener is flushed to that listener.
+     * @param listener Listener to receive batches, or null to stop batching.
+     * @param capacity Number of fixes per batch, at least 1.
+     */
+    public void setBatchListener(BatchListener listener, int capacity) {
+        if (listener != null && capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity must be positive: " + capacity);
+        }
+        DecodePlan previous;
+        synchronized (mPlanLock) {
+            previous = mPlan;
+            mBatchListener = listener;
+            mBatch = listener != null ? new FixBatch(capacity) : null;
+            _compilePlan();
+        }
+        _flush(previous);
+    }
+
+    /**
+     * Hand any fixes collected so far to the batch listener without waiting for the batch to
+     * fill, e.g. at the end of a file. May be called from any thread.
+     */
+    public void flushBatch() {
+        _flush(mPlan);
+    }
+
+    /**
+     * Add a fix to the plan's batch, handing it on if it is full or the plan has been replaced
+     * since onPacket() took it, as then nothing else would flush it.
+     */
+    private void _batch(DecodePlan plan, NMEA.GPSPosition gps) {
+        synchronized (plan.fixBatch) {
+            if (plan.fixBatch.add(gps) || plan != mPlan) {
+                plan.batchListener.onFixBatch(plan.fixBatch);
+                plan.fixBatch.clear();
+            }
+        }
+    }
+
+    private static void _flush(DecodePlan plan) {
+        if (plan.fixBatch == null) {
+            return;
+        }
+        synchronized (plan.fixBatch) {
+            if (plan.fixBatch.size() > 0) {
+                plan.batchListener.onFixBatch(plan.fixBatch);
+                plan.fixBatch.clear();
+            }
+        }
+    }
+
+    /**
+     * The batch passed is cleared and refilled after the call returns, so copy out anything
+     * needed later.
+     */
+    public interface BatchListener {
+        void onFixBatch(FixBatch batch);
+    }
+
+    /**
+     * Merge the sentences of each epoch into one fix for the assembler's listeners, which are
+     * then called once per epoch rather than once per sentence as GpsListeners are.
+     * @param assembler Assembler to feed every known sentence to, or null to stop.
+     */
+    public void setEpochAssembler(EpochAssembler assembler) {
+        synchronized (mPlanLock) {
+            mEpochAssembler = assembler;
+            _compilePlan();
+        }
+    }
+
+    /**
+     * Project each decoded position once, before any listener sees it, so that listeners can
+     * read GPSPosition.easting and northing rather than converting lat and lon themselves.
+     * @param projection e.g. Projection.utmFor(lat, lon) or Projection.local(lat, lon), or null
+     *                   to stop.
+     */
+    public void setProjection(Projection projection) {
+        synchronized (mPlanLock) {
+            mProjection = projection;
+            _compilePlan();
+        }
+    }
+
+    /**
+     * Listen for each sentence as a LazyFix, which only decodes the fields actually read.
+     */
+    public void addLazyFixListener(LazyFixListener listener) {
+        lazyFixListeners.add(listener);
+    }
+
+    /**
+     * The LazyFix passed is reused for the next sentence and reads the packet in place, so it is
+     * only valid during the call. Copy out any values needed later.
+     */
+    public interface LazyFixListener {
+        void onLazyFix(LazyFix fix);
+    }
+
     public boolean isLogging() {
         return mLogging;
     }
     public void stopLogging() {
         mLogging = false;
+        if (mLogger != null) {
+            mLogger.close();
+        }
         mLogger = null;
     }
     /*
@@ -82,7 +398,10 @@ public class NmeaParser extends SentenceParser {
         mLogging = !mLogging;
         if (mLogging) {
             if (mLogger == null) {
-                mLogger = new FileLogger(path, filename);
+                mLogger = createLogger(path, filename);
+                if (mLogger instanceof AsyncFileLogger) {
+                    ((AsyncFileLogger) mLogger).setMetrics(getMetrics());
+                }
             } else {
                 mLogger.NewFile(path, filename);
             }
@@ -102,6 +421,106 @@ public class NmeaParser extends SentenceParser {
         return file;
     }
 
+    private void _subscribe(Subscription subscription) {
+        synchronized (mPlanLock) {
+            subscriptions.add(subscription);
+            _compilePlan();
+        }
+    }
+
+    /**
+     * Work out, for each registered sentence type and for unknown sentences (the last slot),
+     * which listeners want it and whether the batch does.
+     */
+    private void _compilePlan() {
+        SentenceRegistry registry = nNmea.getRegistry();
+        int slots = registry.size() + 1;
+        GpsListener[][] listeners = new GpsListener[slots][];
+        boolean[] batch = new boolean[slots];
+        boolean[] epoch = new boolean[slots];
+        List<GpsListener> wanted = new ArrayList<GpsListener>();
+        for (int slot = 0; slot < slots; slot++) {
+            int index = slot < registry.size() ? slot : -1;
+            wanted.clear();
+            for (Subscription subscription : subscriptions) {
+                if (subscription.wants(registry, index)) {
+                    wanted.add(subscription.listener);
+                }
+            }
+            listeners[slot] = wanted.toArray(new GpsListener[wanted.size()]);
+            batch[slot] = mBatchListener != null && index >= 0
+                    && (registry.fieldsOf(index) & (NMEA.FIELD_LAT | NMEA.FIELD_LON)) != 0;
+            epoch[slot] = mEpochAssembler != null && index >= 0;
+        }
+        mPlan = new DecodePlan(listeners, batch, epoch, mEpochAssembler, mProjection, mBatch, mBatchListener);
+    }
+
+    /**
+     * A listener along with the sentence types (null for all) and fields it consumes.
+     */
+    private static class Subscription {
+        Subscription(GpsListener listener, int fields, long[] types) {
+            this.listener = listener;
+            this.fields = fields;
+            this.types = types;
+        }
+
+        /**
+         * @param index registry index of the sentence, or -1 for an unknown sentence.
+         */
+        boolean wants(SentenceRegistry registry, int index) {
+            if (index < 0) {
+                return types == null && fields == NMEA.FIELD_ALL;
+            }
+            if (types != null) {
+                for (long type : types) {
+                    if (registry.indexOf(type) == index) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return (registry.fieldsOf(index) & fields) != 0;
+        }
+
+        final GpsListener listener;
+        final int fields;
+        final long[] types;
+    }
+
+    /**
+     * Immutable result of _compilePlan(), indexed by registry index with unknown sentences last.
+     */
+    private static class DecodePlan {
+        DecodePlan(GpsListener[][] listeners, boolean[] batch, boolean[] epoch, EpochAssembler assembler,
+                   Projection projection, FixBatch fixBatch, BatchListener batchListener) {
+            this.listeners = listeners;
+            this.batch = batch;
+            this.epoch = epoch;
+            this.assembler = assembler;
+            this.projection = projection;
+            this.fixBatch = fixBatch;
+            this.batchListener = batchListener;
+        }
+
+        final GpsListener[][] listeners;
+        final boolean[] batch;
+        final boolean[] epoch;
+        final EpochAssembler assembler;
+        final Projection projection;
+        // The batch is filled and flushed holding its own lock.
+        final FixBatch fixBatch;
+        final BatchListener batchListener;
+    }
+
+    /**
+     * Create the logger used by ToggleLog. The default queues lines for a background writer,
+     * dropping the oldest if it falls behind, so logging never blocks parsing.
+     */
+    protected FileLogger createLogger(String path, String filename) {
+        return new AsyncFileLogger(path, filename);
+    }
+
     protected void LogToFile(String data)
     {
         try {
@@ -116,6 +535,23 @@ public class NmeaParser extends SentenceParser {
     private boolean mLogging;
 
     protected NMEA nNmea;
-    protected List<GpsListener> gpsListeners = new ArrayList<GpsListener>();
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    /**
+     * Listeners for every sentence. Those added with addGpsListener(listener) are kept here, and
+     * a subclass may add or remove its own.
+     */
+    protected List<GpsListener> gpsListeners = new CopyOnWriteArrayList<GpsListener>();
+    protected List<LazyFixListener> lazyFixListeners = new CopyOnWriteArrayList<LazyFixListener>();
+    private final LazyFix mLazyFix;
+    private final NmeaFieldReader mAddress = new NmeaFieldReader();
+    private final Object mPlanLock = new Object();
+    private volatile DecodePlan mPlan;
+    private long mSkippedSentences;
+    private long mDecodedSentences;
+    // Guarded by mPlanLock, read only by _compilePlan(); onPacket() uses the plan's copies.
+    private BatchListener mBatchListener;
+    private FixBatch mBatch;
+    private EpochAssembler mEpochAssembler;
+    private Projection mProjection;
 }
 
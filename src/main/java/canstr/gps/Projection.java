@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * Projects fixes on the WGS84 ellipsoid to easting and northing in metres, so that consumers
+ * work in a plane rather than each converting degrees with their own trigonometry. Set one on the
+ * NmeaParser and each position is projected once as it is decoded, with every listener reading
+ * GPSPosition.easting and northing.
+ * The constants of each UTM zone and each origin are worked out once when the projection is
+ * created, and projections hold no other state so may be shared between threads.
+ */
+public abstract class Projection {
+
+    /**
+     * Set position.easting and position.northing from its lat and lon.
+     */
+    public abstract void project(NMEA.GPSPosition position);
+
+    /**
+     * Universal Transverse Mercator, by the Krueger series to fourth order in the third
+     * flattening, which is accurate to well under a millimetre within the zone. Projections are
+     * cached, so this may be called per fix.
+     * @param zone UTM zone from 1 to 60.
+     * @param north True for the northern hemisphere, false for the southern (false northing 10000km).
+     */
+    public static Projection utm(int zone, boolean north) {
+        if (zone < 1 || zone > 60) {
+            throw new IllegalArgumentException("UTM zone " + zone);
+        }
+        int slot = (zone - 1) * 2 + (north ? 0 : 1);
+        Projection projection = sUtm[slot];
+        if (projection == null) {
+            projection = new Utm(zone, north);
+            sUtm[slot] = projection;
+        }
+        return projection;
+    }
+
+    /**
+     * @return UTM projection of the standard zone containing the position.
+     */
+    public static Projection utmFor(double lat, double lon) {
+        return utm(utmZone(lon), lat >= 0);
+    }
+
+    /**
+     * @return standard UTM zone of a longitude, without the Norway and Svalbard exceptions.
+     */
+    public static int utmZone(double lon) {
+        int zone = (int) Math.floor((lon + 180) / 6) + 1;
+        return Math.max(1, Math.min(60, zone));
+    }
+
+    /**
+     * A local tangent plane: east and north in metres from the origin, in the plane touching the
+     * ellipsoid there. Exact rather than a flat earth approximation, but without trigonometric
+     * calls per fix, so is suited to a field and anything within a few tens of kilometres.
+     */
+    public static Projection local(double originLat, double originLon) {
+        return new Local(originLat, originLon);
+    }
+
+    /**
+     * Series for sin and cos of small angles, accurate to double precision below 0.02 radians.
+     */
+    private static double _sinSmall(double x) {
+        double x2 = x * x;
+        return x * (1 - x2 / 6 * (1 - x2 / 20 * (1 - x2 / 42 * (1 - x2 / 72))));
+    }
+
+    private static double _cosSmall(double x) {
+        double x2 = x * x;
+        return 1 - x2 / 2 * (1 - x2 / 12 * (1 - x2 / 30 * (1 - x2 / 56 * (1 - x2 / 90))));
+    }
+
+    private static class Utm extends Projection {
+        Utm(int zone, boolean north) {
+            mCentralMeridian = Math.toRadians(zone * 6 - 183);
+            mFalseNorthing = north ? 0 : 10000000;
+            double n = FLATTENING / (2 - FLATTENING);
+            double n2 = n * n;
+            double n3 = n2 * n;
+            double n4 = n3 * n;
+            mScaledRadius = K0 * SEMI_MAJOR / (1 + n) * (1 + n2 / 4 + n4 / 64);
+            mAlpha1 = n / 2 - 2 * n2 / 3 + 5 * n3 / 16 + 41 * n4 / 180;
+            mAlpha2 = 13 * n2 / 48 - 3 * n3 / 5 + 557 * n4 / 1440;
+            mAlpha3 = 61 * n3 / 240 - 103 * n4 / 140;
+            mAlpha4 = 49561 * n4 / 161280;
+            mEccentricity = 2 * Math.sqrt(n) / (1 + n);
+        }
+
+        @Override
+        public void project(NMEA.GPSPosition position) {
+            double lat = Math.toRadians(position.getLat());
+            double dlon = Math.toRadians(position.getLon()) - mCentralMeridian;
+            double sinLat = Math.sin(lat);
+            // Conformal latitude as its tangent.
+            double t = Math.sinh(_atanh(sinLat) - mEccentricity * _atanh(mEccentricity * sinLat));
+            double cosLon = Math.cos(dlon);
+            double xi = Math.atan2(t, cosLon);
+            double eta = _atanh(Math.sin(dlon) / Math.sqrt(1 + t * t));
+            // sin/cos of 2j xi and sinh/cosh of 2j eta by the angle addition formulas.
+            double s1 = Math.sin(2 * xi);
+            double c1 = Math.cos(2 * xi);
+            double sh1 = Math.sinh(2 * eta);
+            double ch1 = Math.cosh(2 * eta);
+            double s2 = 2 * s1 * c1;
+            double c2 = c1 * c1 - s1 * s1;
+            double sh2 = 2 * sh1 * ch1;
+            double ch2 = ch1 * ch1 + sh1 * sh1;
+            double s3 = s2 * c1 + c2 * s1;
+            double c3 = c2 * c1 - s2 * s1;
+            double sh3 = sh2 * ch1 + ch2 * sh1;
+            double ch3 = ch2 * ch1 + sh2 * sh1;
+            double s4 = 2 * s2 * c2;
+            double c4 = c2 * c2 - s2 * s2;
+            double sh4 = 2 * sh2 * ch2;
+            double ch4 = ch2 * ch2 + sh2 * sh2;
+            position.easting = FALSE_EASTING + mScaledRadius * (eta + mAlpha1 * c1 * sh1
+                    + mAlpha2 * c2 * sh2 + mAlpha3 * c3 * sh3 + mAlpha4 * c4 * sh4);
+            position.northing = mFalseNorthing + mScaledRadius * (xi + mAlpha1 * s1 * ch1
+                    + mAlpha2 * s2 * ch2 + mAlpha3 * s3 * ch3 + mAlpha4 * s4 * ch4);
+        }
+
+        private static double _atanh(double x) {
+            return 0.5 * Math.log((1 + x) / (1 - x));
+        }
+
+        private static final double K0 = 0.9996;
+        private static final double FALSE_EASTING = 500000;
+
+        private final double mCentralMeridian;
+        private final double mFalseNorthing;
+        private final double mScaledRadius;
+        private final double mAlpha1;
+        private final double mAlpha2;
+        private final double mAlpha3;
+        private final double mAlpha4;
+        private final double mEccentricity;
+    }
+
+    /**
+     * East and north components of the vector from the origin to the point on the ellipsoid, in
+     * earth centred coordinates rotated to the origin's meridian. The sines and cosines of the
+     * point's latitude and longitude come from those of the origin and small angle series of
+     * the differences.
+     */
+    private static class Local extends Projection {
+        Local(double originLat, double originLon) {
+            mLat = Math.toRadians(originLat);
+            mLon = Math.toRadians(originLon);
+            mSinLat = Math.sin(mLat);
+            mCosLat = Math.cos(mLat);
+            double radius = SEMI_MAJOR / Math.sqrt(1 - E2 * mSinLat * mSinLat);
+            mX = radius * mCosLat;
+            mZ = radius * (1 - E2) * mSinLat;
+        }
+
+        @Override
+        public void project(NMEA.GPSPosition position) {
+            double dlat = Math.toRadians(position.getLat()) - mLat;
+            double dlon = Math.toRadians(position.getLon()) - mLon;
+            if (dlon > Math.PI) {
+                dlon -= 2 * Math.PI;
+            } else if (dlon < -Math.PI) {
+                dlon += 2 * Math.PI;
+            }
+            double sinDlat = _sinSmall(dlat);
+            double cosDlat = _cosSmall(dlat);
+            double sinLat = mSinLat * cosDlat + mCosLat * sinDlat;
+            double cosLat = mCosLat * cosDlat - mSinLat * sinDlat;
+            double radius = SEMI_MAJOR / Math.sqrt(1 - E2 * sinLat * sinLat);
+            double x = radius * cosLat * _cosSmall(dlon) - mX;
+            double z = radius * (1 - E2) * sinLat - mZ;
+            position.easting = radius * cosLat * _sinSmall(dlon);
+            position.northing = mCosLat * z - mSinLat * x;
+        }
+
+        private final double mLat;
+        private final double mLon;
+        private final double mSinLat;
+        private final double mCosLat;
+        private final double mX;
+        private final double mZ;
+    }
+
+    private static final double SEMI_MAJOR = 6378137;
+    private static final double FLATTENING = 1 / 298.257223563;
+    private static final double E2 = FLATTENING * (2 - FLATTENING);
+
+    // Benign race: a projection may be created twice, and either is as good.
+    private static final Projection[] sUtm = new Projection[120];
+}
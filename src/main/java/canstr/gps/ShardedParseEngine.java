@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import canstr.parse.ChecksumMode;
+import canstr.parse.IPacket;
+import canstr.parse.IParse;
+import canstr.util.SpscRing;
+
+/**
+ * Parses many receivers at once by sharing their sources out between a fixed set of worker
+ * threads.
+ * Each source is an IParse (so it can be the target of a NetworkIngest or FileDataStreamer)
+ * whose bytes are copied into preallocated chunks of a single producer ring. The worker which
+ * owns the source drains the ring into the source's own NmeaParser, so framing and the decoded
+ * position are never shared between sources or threads, and the only thing the feeding thread
+ * and the worker share is the ring.
+ * New sources go to the worker with fewest; removing a source moves one from the busiest worker
+ * to the idlest if they differ by more than one. A source is only handed over once its old
+ * worker has finished with it. Listeners of a source's parser are called on its worker thread.
+ * When a source's queue is full its newest bytes are dropped, and its parser resynchronises at
+ * the next sentence start, so only whole sentences are lost.
+ */
+public class ShardedParseEngine {
+
+    /**
+     * Queue up to 16KB per source in 512 byte chunks.
+     * @param workers Number of worker threads.
+     */
+    public ShardedParseEngine(int workers) {
+        this(workers, 512, 32);
+    }
+
+    /**
+     * @param workers Number of worker threads.
+     * @param chunkSize Bytes per queued chunk.
+     * @param chunksPerSource Chunks queued per source before its data is dropped, rounded up to a
+     * power of two.
+     */
+    public ShardedParseEngine(int workers, int chunkSize, int chunksPerSource) {
+        mChunkSize = Math.max(64, chunkSize);
+        mChunksPerSource = Integer.highestOneBit(Math.max(1, chunksPerSource - 1)) << 1;
+        mWorkers = new Worker[Math.max(1, workers)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+    }
+
+    /**
+     * Start the worker threads. Sources may be added before or after. Does nothing if already
+     * started; an engine cannot be restarted once stopped.
+     * @throws IllegalStateException if stop() has been called.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStopped) {
+                throw new IllegalStateException("ShardedParseEngine cannot be restarted after stop()");
+            }
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            for (Worker worker : mWorkers) {
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the workers once they have parsed everything queued. The engine cannot be started
+     * again; create a new one instead.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+        }
+        for (Worker worker : mWorkers) {
+            worker.mRunning = false;
+            LockSupport.unpark(worker);
+        }
+        for (Worker worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Add a source, given to the worker with fewest sources.
+     * @param name Name for the source, e.g. its receiver's address.
+     * @return the source, to feed with bytes and to add listeners to its parser.
+     */
+    public Source addSource(String name) {
+        Source source = new Source(name);
+        source.mParser = createParser(source);
+        synchronized (mLock) {
+            _assign(source, _leastLoaded());
+        }
+        return source;
+    }
+
+    /**
+     * Remove a source. Its listeners are not called again once this returns, and anything still
+     * queued for it is discarded. The workers are then rebalanced.
+     */
+    public void removeSource(Source source) {
+        synchronized (mLock) {
+            Worker worker = source.mWorker;
+            if (worker == null) {
+                return;
+            }
+            _unassign(source);
+            // No worker is draining it any more, so it is safe to take the consumer's side.
+            source._discardQueued();
+            Worker busiest = mWorkers[0];
+            for (Worker candidate : mWorkers) {
+                if (candidate.mSources.length > busiest.mSources.length) {
+                    busiest = candidate;
+                }
+            }
+            Worker idlest = _leastLoaded();
+            if (busiest.mSources.length - idlest.mSources.length > 1) {
+                Source moved = busiest.mSources[busiest.mSources.length - 1];
+                _unassign(moved);
+                _assign(moved, idlest);
+            }
+        }
+    }
+
+    /**
+     * Create the parser for a source. Override to use another SentenceRegistry or pool.
+     * The default rejects sentences with a missing or bad checksum, as network sources are
+     * rarely as clean as a serial line.
+     */
+    protected NmeaParser createParser(Source source) {
+        NmeaParser parser = new NmeaParser();
+        parser.setChecksumMode(ChecksumMode.REJECT);
+        return parser;
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * @return number of sources owned by the worker.
+     */
+    public int getSourceCount(int worker) {
+        return mWorkers[worker].mSources.length;
+    }
+
+    private Worker _leastLoaded() {
+        Worker least = mWorkers[0];
+        for (Worker worker : mWorkers) {
+            if (worker.mSources.length < least.mSources.length) {
+                least = worker;
+            }
+        }
+        return least;
+    }
+
+    /**
+     * Publish a new copy of the worker's sources with the source added.
+     */
+    private void _assign(Source source, Worker worker) {
+        Source[] sources = worker.mSources;
+        Source[] added = new Source[sources.length + 1];
+        System.arraycopy(sources, 0, added, 0, sources.length);
+        added[sources.length] = source;
+        source.mWorker = worker;
+        worker.mSources = added;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * Publish a new copy of the worker's sources without the source, and wait until the worker
+     * can no longer be using it.
+     */
+    private void _unassign(Source source) {
+        Worker worker = source.mWorker;
+        List<Source> remaining = new ArrayList<Source>();
+        for (Source owned : worker.mSources) {
+            if (owned != source) {
+                remaining.add(owned);
+            }
+        }
+        worker.mSources = remaining.toArray(new Source[remaining.size()]);
+        source.mWorker = null;
+        // Any pass which could have seen the old array ends before the epoch moves on.
+        long epoch = worker.mEpoch;
+        while (worker.isAlive() && worker.mEpoch == epoch) {
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(HANDOVER_WAIT_NS);
+        }
+    }
+
+    /**
+     * A receiver's byte stream. Feed it from one thread at a time, such as the NetworkIngest I/O
+     * thread; bytes which do not fit in its queue are dropped and counted, and the sentences they
+     * were part of are discarded.
+     */
+    public class Source implements IParse {
+
+        Source(String name) {
+            mName = name;
+            Chunk[] chunks = new Chunk[mChunksPerSource];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new Chunk(mChunkSize);
+            }
+            mRing = new SpscRing<Chunk>(chunks);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the parser this source is decoded by, to add listeners to.
+         */
+        public NmeaParser getParser() {
+            return mParser;
+        }
+
+        /**
+         * @return bytes dropped because the worker had not kept up.
+         */
+        public long getDroppedBytes() {
+            return mDroppedBytes;
+        }
+
+        /**
+         * @return number of chunks waiting for the worker.
+         */
+        public int getQueuedChunks() {
+            return mRing.size();
+        }
+
+        public void Parse(byte[] data) {
+            Parse(data, 0, data.length);
+        }
+
+        public void Parse(byte[] data, int offset, int length) {
+            while (length > 0) {
+                Chunk chunk = _claim(length);
+                if (chunk == null) {
+                    break;
+                }
+                int count = Math.min(length, chunk.data.length);
+                System.arraycopy(data, offset, chunk.data, 0, count);
+                chunk.length = count;
+                mRing.publish();
+                offset += count;
+                length -= count;
+            }
+            _wake();
+        }
+
+        public void Parse(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                Chunk chunk = _claim(buffer.remaining());
+                if (chunk == null) {
+                    buffer.position(buffer.limit());
+                    break;
+                }
+                int count = Math.min(buffer.remaining(), chunk.data.length);
+                buffer.get(chunk.data, 0, count);
+                chunk.length = count;
+                mRing.publish();
+            }
+            _wake();
+        }
+
+        public void Parse(String str) {
+            Parse(str.getBytes(UTF8));
+        }
+
+        /**
+         * Queue an already framed sentence, which still ends with the delimiter it was framed on.
+         */
+        public void onPacket(IPacket packet) {
+            Parse(packet.getBytes());
+        }
+
+        /**
+         * Claim a chunk for the next bytes, marking it to resynchronise the parser if bytes
+         * were dropped since the last one.
+         * @param length bytes waiting to be queued, counted as dropped if the ring is full.
+         * @return the chunk, or null if the ring is full.
+         */
+        private Chunk _claim(int length) {
+            Chunk chunk = mRing.claim();
+            if (chunk == null) {
+                mDroppedBytes += length;
+                mGap = true;
+                return null;
+            }
+            chunk.resync = mGap;
+            mGap = false;
+            return chunk;
+        }
+
+        private void _wake() {
+            Worker worker = mWorker;
+            if (worker != null && worker.mIdle) {
+                LockSupport.unpark(worker);
+            }
+        }
+
+        /**
+         * Parse some of the queued chunks. Called by the owning worker only.
+         * @return true if there was anything to parse.
+         */
+        private boolean _drain() {
+            int drained = 0;
+            Chunk chunk;
+            while (drained < CHUNKS_PER_PASS && (chunk = mRing.peek()) != null) {
+                try {
+                    if (chunk.resync) {
+                        mParser.resync();
+                    }
+                    mParser.Parse(chunk.data, 0, chunk.length);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                mRing.release();
+                drained++;
+            }
+            return drained > 0;
+        }
+
+        /**
+         * Release everything queued and forget the sentence being framed. Only called once no
+         * worker owns the source.
+         */
+        private void _discardQueued() {
+            while (mRing.peek() != null) {
+                mRing.release();
+            }
+            mParser.resync();
+        }
+
+        private final String mName;
+        private final SpscRing<Chunk> mRing;
+        private NmeaParser mParser;
+        private volatile Worker mWorker;
+        private volatile long mDroppedBytes;
+        // Producer side: bytes were dropped since the last chunk queued.
+        private boolean mGap;
+    }
+
+    /**
+     * A preallocated piece of a source's byte stream.
+     */
+    private static class Chunk {
+        Chunk(int size) {
+            data = new byte[size];
+        }
+
+        final byte[] data;
+        int length;
+        // Bytes before this chunk were dropped.
+        boolean resync;
+    }
+
+    private class Worker extends Thread {
+        Worker(int index) {
+            super("ShardedParseEngine-" + index);
+            setDaemon(true);
+        }
+
+        public void run() {
+            int idlePasses = 0;
+            while (mRunning) {
+                boolean busy = false;
+                for (Source source : mSources) {
+                    busy |= source._drain();
+                }
+                mEpoch = mEpoch + 1;
+                if (busy) {
+                    idlePasses = 0;
+                } else if (++idlePasses > SPIN_PASSES) {
+                    mIdle = true;
+                    if (!_hasQueued()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NS);
+                    }
+                    mIdle = false;
+                }
+            }
+            // Parse whatever was queued before stopping.
+            for (Source source : mSources) {
+                while (source._drain()) {
+                    // Keep going until empty.
+                }
+            }
+            mEpoch = mEpoch + 1;
+        }
+
+        private boolean _hasQueued() {
+            for (Source source : mSources) {
+                if (source.getQueuedChunks() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        volatile Source[] mSources = new Source[0];
+        volatile long mEpoch;
+        volatile boolean mIdle;
+        volatile boolean mRunning = true;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CHUNKS_PER_PASS = 16;
+    private static final int SPIN_PASSES = 100;
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long HANDOVER_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final Worker[] mWorkers;
+    private final int mChunkSize;
+    private final int mChunksPerSource;
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private boolean mStarted;
+    private boolean mStopped;
+}
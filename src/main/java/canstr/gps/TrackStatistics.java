@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * Running statistics of a track, updated in constant time per fix so that nothing needs to be
+ * stored or rescanned: distance travelled, area worked (distance moving times implement width),
+ * moving and idle time, average and maximum speed.
+ * A fix is idle when the receiver's speed is below the idle threshold; idle fixes add time but
+ * no distance, so position jitter while stopped is not counted as travel. Intervals longer than
+ * the maximum gap (lost signal, or the log paused) are not counted at all, nor are those to or
+ * from a fix without a fix quality, though their time still moves the window on.
+ * Totals use compensated (Kahan) summation so long sessions do not drift. The same figures
+ * over the last windowSeconds are kept in a ring of per second buckets of fixed point integers,
+ * which are added and subtracted exactly as seconds enter and leave the window.
+ * Add it to an EpochAssembler, or as a batch listener, so it sees one fix per epoch. Queries are
+ * safe from any thread at any time.
+ */
+public class TrackStatistics implements NmeaParser.GpsListener, NmeaParser.BatchListener {
+
+    /**
+     * Count below 0.5 knots as idle, ignore gaps over 5s, and keep a 60s window.
+     * @param implementWidth Working width in metres, for the area worked.
+     */
+    public TrackStatistics(double implementWidth) {
+        this(implementWidth, 0.5f, 5000000, 60);
+    }
+
+    /**
+     * @param implementWidth Working width in metres, for the area worked.
+     * @param idleKnots Speed below which the vehicle is idle.
+     * @param maxGapMicros Longest interval between fixes which is counted.
+     * @param windowSeconds Length of the window for the windowed figures.
+     */
+    public TrackStatistics(double implementWidth, float idleKnots, long maxGapMicros, int windowSeconds) {
+        mImplementWidth = implementWidth;
+        mIdleKnots = idleKnots;
+        mMaxGapMicros = maxGapMicros;
+        int size = Math.max(1, windowSeconds);
+        mBucketMillimetres = new long[size];
+        mBucketMovingMicros = new long[size];
+        mBucketIdleMicros = new long[size];
+    }
+
+    public void onGpsPosition(NMEA.GPSPosition gps) {
+        add(gps.getLat(), gps.getLon(), NMEA.toMicros(gps.getTime()), gps.velocity, gps.quality);
+    }
+
+    public void onFixBatch(FixBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.lat[i], batch.lon[i], batch.timeMicros[i], batch.speed[i], batch.quality[i]);
+        }
+    }
+
+    /**
+     * Add a fix.
+     * @param timeMicros UTC time of day in microseconds.
+     * @param speedKnots Speed over ground from the receiver.
+     * @param quality Fix quality, 0 for no fix.
+     */
+    public synchronized void add(double lat, double lon, long timeMicros, float speedKnots, int quality) {
+        if (mHaveTime) {
+            long elapsed = NMEA.continuous(timeMicros, mLastMicros) - mLastMicros;
+            if (elapsed < 0) {
+                // Older than the last fix; ignore it.
+                return;
+            }
+            mClockMicros += elapsed;
+            // Move the window on even if the interval is not counted, so it never holds figures
+            // from before a gap or a spell without a fix.
+            _window(mClockMicros / 1000000, 0, 0, 0);
+            if (quality > 0 && mHaveLast && elapsed > 0 && elapsed <= mMaxGapMicros) {
+                _interval(lat, lon, elapsed, speedKnots);
+            }
+        }
+        mHaveTime = true;
+        mLastMicros = timeMicros;
+        if (quality <= 0) {
+            // Nothing to measure the next fix from.
+            mHaveLast = false;
+            return;
+        }
+        mFixes++;
+        mHaveLast = true;
+        mLastLat = lat;
+        mLastLon = lon;
+        if (speedKnots > mMaxKnots) {
+            mMaxKnots = speedKnots;
+        }
+    }
+
+    private void _interval(double lat, double lon, long elapsed, float speedKnots) {
+        long second = mClockMicros / 1000000;
+        if (speedKnots < mIdleKnots) {
+            mIdleMicros += elapsed;
+            _window(second, 0, 0, elapsed);
+            return;
+        }
+        double north = Math.toRadians(lat - mLastLat) * EARTH_RADIUS;
+        double east = Math.toRadians(lon - mLastLon) * EARTH_RADIUS * Math.cos(Math.toRadians((lat + mLastLat) / 2));
+        double metres = Math.sqrt(north * north + east * east);
+        _kahanDistance(metres);
+        _kahanArea(metres * mImplementWidth);
+        mMovingMicros += elapsed;
+        _window(second, Math.round(metres * 1000), elapsed, 0);
+    }
+
+    private void _kahanDistance(double value) {
+        double y = value - mDistanceError;
+        double t = mDistance + y;
+        mDistanceError = (t - mDistance) - y;
+        mDistance = t;
+    }
+
+    private void _kahanArea(double value) {
+        double y = value - mAreaError;
+        double t = mArea + y;
+        mAreaError = (t - mArea) - y;
+        mArea = t;
+    }
+
+    /**
+     * Add to the bucket of the given second, first emptying buckets which have left the window.
+     */
+    private void _window(long second, long millimetres, long moving, long idle) {
+        int size = mBucketMillimetres.length;
+        if (second > mHeadSecond) {
+            long from = Math.max(mHeadSecond + 1, second - size + 1);
+            for (long s = from; s <= second; s++) {
+                int slot = (int) (s % size);
+                mWindowMillimetres -= mBucketMillimetres[slot];
+                mWindowMovingMicros -= mBucketMovingMicros[slot];
+                mWindowIdleMicros -= mBucketIdleMicros[slot];
+                mBucketMillimetres[slot] = 0;
+                mBucketMovingMicros[slot] = 0;
+                mBucketIdleMicros[slot] = 0;
+            }
+            mHeadSecond = second;
+        } else if (second <= mHeadSecond - size) {
+            return;
+        }
+        int slot = (int) (second % size);
+        mBucketMillimetres[slot] += millimetres;
+        mBucketMovingMicros[slot] += moving;
+        mBucketIdleMicros[slot] += idle;
+        mWindowMillimetres += millimetres;
+        mWindowMovingMicros += moving;
+        mWindowIdleMicros += idle;
+    }
+
+    /**
+     * @return metres travelled while moving.
+     */
+    public synchronized double getDistance() {
+        return mDistance;
+    }
+
+    /**
+     * @return square metres worked.
+     */
+    public synchronized double getArea() {
+        return mArea;
+    }
+
+    public synchronized long getMovingMicros() {
+        return mMovingMicros;
+    }
+
+    public synchronized long getIdleMicros() {
+        return mIdleMicros;
+    }
+
+    /**
+     * @return fix time from the first fix to the latest, including gaps.
+     */
+    public synchronized long getElapsedMicros() {
+        return mClockMicros;
+    }
+
+    /**
+     * @return average speed while moving in metres per second.
+     */
+    public synchronized double getAverageSpeed() {
+        return mMovingMicros == 0 ? 0 : mDistance / (mMovingMicros / 1e6);
+    }
+
+    /**
+     * @return highest speed reported, in knots.
+     */
+    public synchronized float getMaxKnots() {
+        return mMaxKnots;
+    }
+
+    /**
+     * @return number of fixes counted, i.e. with a fix quality and in time order.
+     */
+    public synchronized long getFixCount() {
+        return mFixes;
+    }
+
+    /**
+     * @return metres travelled in the window.
+     */
+    public synchronized double getWindowDistance() {
+        return mWindowMillimetres / 1000.0;
+    }
+
+    public synchronized long getWindowMovingMicros() {
+        return mWindowMovingMicros;
+    }
+
+    public synchronized long getWindowIdleMicros() {
+        return mWindowIdleMicros;
+    }
+
+    /**
+     * @return average speed while moving in the window, in metres per second.
+     */
+    public synchronized double getWindowAverageSpeed() {
+        return mWindowMovingMicros == 0 ? 0 : mWindowMillimetres / 1000.0 / (mWindowMovingMicros / 1e6);
+    }
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private final double mImplementWidth;
+    private final float mIdleKnots;
+    private final long mMaxGapMicros;
+    private boolean mHaveTime;
+    private boolean mHaveLast;
+    private double mLastLat;
+    private double mLastLon;
+    private long mLastMicros;
+    private long mClockMicros;
+    private long mFixes;
+    private double mDistance;
+    private double mDistanceError;
+    private double mArea;
+    private double mAreaError;
+    private long mMovingMicros;
+    private long mIdleMicros;
+    private float mMaxKnots;
+    // Window ring, indexed by second of mClockMicros modulo its length.
+    private final long[] mBucketMillimetres;
+    private final long[] mBucketMovingMicros;
+    private final long[] mBucketIdleMicros;
+    private long mHeadSecond = -1;
+    private long mWindowMillimetres;
+    private long mWindowMovingMicros;
+    private long mWindowIdleMicros;
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import es.agroguia.model.NMEA;
+
+/**
+ * A track held in chunks of primitive arrays, 29 bytes a fix, simplified as fixes arrive and
+ * bounded in size.
+ * Simplification uses an opening window: the fixes since the last one stored are kept back while
+ * every one of them lies within tolerance metres of the line from the last stored fix to the
+ * newest, and are dropped once a fix arrives which would take one of them out of tolerance. So
+ * the stored track never strays from the received one by more than the tolerance, and a straight
+ * run keeps little more than its ends. The window is limited to WINDOW fixes so the work per
+ * fix is bounded; a gap longer than maxGap also ends a run.
+ * The newest fix is always part of the track, even though it may later be dropped. Once the store
+ * holds maxFixes the oldest CHUNK_SIZE fixes are dropped, so indices count from the oldest fix
+ * held and move down when that happens; hold times rather than indices across adds.
+ * Times are in microseconds since midnight of the day of the first fix, carrying on past a day
+ * over midnight, and are found by binary search. Positions are kept to 1e-7 degrees (1cm).
+ */
+public class TrackStore implements NmeaParser.GpsListener, NmeaParser.BatchListener {
+
+    /** Fixes per chunk, and so the number dropped at once when the store is full. */
+    public static final int CHUNK_SIZE = 4096;
+    /** Most fixes held back for simplification at once. */
+    public static final int WINDOW = 256;
+
+    /**
+     * Start a new run after gaps of over 5s.
+     * @param maxFixes Fixes to hold before the oldest are dropped, rounded up to whole chunks.
+     * @param tolerance Metres the simplified track may stray from the received one, or 0 to only
+     *                  drop fixes lying on the line between their neighbours.
+     */
+    public TrackStore(int maxFixes, double tolerance) {
+        this(maxFixes, tolerance, 5000000);
+    }
+
+    /**
+     * @param maxFixes Fixes to hold before the oldest are dropped, rounded up to whole chunks.
+     * @param tolerance Metres the simplified track may stray from the received one.
+     * @param maxGapMicros Longest interval between fixes which may be simplified away.
+     */
+    public TrackStore(int maxFixes, double tolerance, long maxGapMicros) {
+        mChunks = new Chunk[Math.max(2, (maxFixes + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        mTolerance = Math.max(0, tolerance);
+        mMaxGapMicros = maxGapMicros;
+    }
+
+    public void onGpsPosition(NMEA.GPSPosition gps) {
+        add(gps.getLat(), gps.getLon(), NMEA.toMicros(gps.getTime()), gps.velocity, gps.dir, gps.altitude, gps.quality);
+    }
+
+    public void onFixBatch(FixBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.lat[i], batch.lon[i], batch.timeMicros[i], batch.speed[i], batch.dir[i],
+                    batch.altitude[i], batch.quality[i]);
+        }
+    }
+
+    /**
+     * Add a fix. Fixes without a fix quality, or older than the newest, are ignored.
+     * @param timeMicros UTC time of day in microseconds.
+     */
+    public synchronized void add(double lat, double lon, long timeMicros, float speed, float dir,
+                                 float altitude, int quality) {
+        if (quality <= 0) {
+            return;
+        }
+        long time = NMEA.continuous(timeMicros, mLastMicros);
+        if (time < mLastMicros) {
+            return;
+        }
+        mLastMicros = time;
+        mAddedCount++;
+        if (!mHaveAnchor) {
+            _anchor(lat, lon);
+            _write(lat, lon, time, speed, dir, altitude, quality);
+            mStored++;
+            mHavePending = false;
+            return;
+        }
+        if (mHavePending) {
+            double x = _x(lon);
+            double y = _y(lat);
+            if (time - mPendingMicros > mMaxGapMicros || mWindowCount == WINDOW
+                    || !_fits(x, y)) {
+                // Keep the pending fix and start a new run from it.
+                mStored++;
+                _anchor(mPendingLat, mPendingLon);
+            } else {
+                mWindowCount++;
+                mSimplifiedCount++;
+            }
+        }
+        mPendingX = _x(lon);
+        mPendingY = _y(lat);
+        mPendingLat = lat;
+        mPendingLon = lon;
+        mPendingMicros = time;
+        _write(lat, lon, time, speed, dir, altitude, quality);
+    }
+
+    /**
+     * Start a run at the given position, which is stored.
+     */
+    private void _anchor(double lat, double lon) {
+        mHaveAnchor = true;
+        mAnchorLat = lat;
+        mAnchorLon = lon;
+        mAnchorCos = Math.cos(Math.toRadians(lat));
+        mWindowCount = 0;
+    }
+
+    private double _x(double lon) {
+        return Math.toRadians(lon - mAnchorLon) * EARTH_RADIUS * mAnchorCos;
+    }
+
+    private double _y(double lat) {
+        return Math.toRadians(lat - mAnchorLat) * EARTH_RADIUS;
+    }
+
+    /**
+     * Put the pending fix in the window and check that it and every fix already there lies within
+     * tolerance of the line from the anchor to (x, y).
+     */
+    private boolean _fits(double x, double y) {
+        mWindowX[mWindowCount] = mPendingX;
+        mWindowY[mWindowCount] = mPendingY;
+        double length2 = x * x + y * y;
+        double tolerance2 = mTolerance * mTolerance;
+        for (int i = 0; i <= mWindowCount; i++) {
+            double px = mWindowX[i];
+            double py = mWindowY[i];
+            double t = length2 == 0 ? 0 : (px * x + py * y) / length2;
+            if (t < 0) {
+                t = 0;
+            } else if (t > 1) {
+                t = 1;
+            }
+            double dx = px - t * x;
+            double dy = py - t * y;
+            if (dx * dx + dy * dy > tolerance2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the pending fix to the slot after the stored fixes, dropping the oldest chunk first if
+     * a new chunk is needed and the store is full.
+     */
+    private void _write(double lat, double lon, long time, float speed, float dir, float altitude, int quality) {
+        if (mStored == mChunkCount * CHUNK_SIZE) {
+            if (mChunkCount == mChunks.length) {
+                // The chunk dropped is the one reused, as it sits after the newest in the ring.
+                mHead = (mHead + 1) % mChunks.length;
+                mChunkCount--;
+                mStored -= CHUNK_SIZE;
+                mEvictedCount += CHUNK_SIZE;
+            }
+            int slot = (mHead + mChunkCount) % mChunks.length;
+            if (mChunks[slot] == null) {
+                mChunks[slot] = new Chunk();
+            }
+            mChunkCount++;
+        }
+        Chunk chunk = _chunk(mStored);
+        int i = mStored % CHUNK_SIZE;
+        chunk.lat[i] = (int) Math.round(lat * SCALE);
+        chunk.lon[i] = (int) Math.round(lon * SCALE);
+        chunk.time[i] = time;
+        chunk.speed[i] = speed;
+        chunk.dir[i] = dir;
+        chunk.altitude[i] = altitude;
+        chunk.quality[i] = (byte) quality;
+        mHavePending = true;
+    }
+
+    private Chunk _chunk(int index) {
+        return mChunks[(mHead + index / CHUNK_SIZE) % mChunks.length];
+    }
+
+    private long _time(int index) {
+        return _chunk(index).time[index % CHUNK_SIZE];
+    }
+
+    /**
+     * @return number of fixes in the track, including the newest.
+     */
+    public synchronized int size() {
+        return mHavePending ? mStored + 1 : mStored;
+    }
+
+    /**
+     * @return index of the first fix at or after the time, or size() if there is none.
+     */
+    public synchronized int indexAtOrAfter(long timeMicros) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (_time(mid) < timeMicros) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return time of fix index, in microseconds since midnight of the day of the first fix.
+     */
+    public synchronized long getTimeMicros(int index) {
+        _check(index);
+        return _time(index);
+    }
+
+    public synchronized double getLat(int index) {
+        _check(index);
+        return _chunk(index).lat[index % CHUNK_SIZE] / SCALE;
+    }
+
+    public synchronized double getLon(int index) {
+        _check(index);
+        return _chunk(index).lon[index % CHUNK_SIZE] / SCALE;
+    }
+
+    /**
+     * Copy fix index into the position.
+     */
+    public synchronized void get(int index, NMEA.GPSPosition gps) {
+        _check(index);
+        Chunk chunk = _chunk(index);
+        int i = index % CHUNK_SIZE;
+        gps.setLat(chunk.lat[i] / SCALE);
+        gps.setLon(chunk.lon[i] / SCALE);
+        gps.setTime(NMEA.fromMicros(chunk.time[i] % NMEA.DAY_MICROS));
+        gps.velocity = chunk.speed[i];
+        gps.dir = chunk.dir[i];
+        gps.altitude = chunk.altitude[i];
+        gps.quality = chunk.quality[i];
+        gps.updatefix();
+    }
+
+    /**
+     * Copy fixes from index from up to to into the batch, as many as it will hold. The batch is
+     * cleared first, and its times are times of day. E.g. for a time range:
+     * for (int i = store.indexAtOrAfter(start), end = store.indexAtOrAfter(stop); i < end; )
+     *     i = store.get(i, end, batch); ...
+     * @return index of the next fix to copy.
+     */
+    public synchronized int get(int from, int to, FixBatch batch) {
+        batch.clear();
+        int end = Math.min(to, size());
+        int index = Math.max(0, from);
+        while (index < end && batch.size() < batch.capacity()) {
+            Chunk chunk = _chunk(index);
+            int i = index % CHUNK_SIZE;
+            batch.add(chunk.lat[i] / SCALE, chunk.lon[i] / SCALE, chunk.time[i] % NMEA.DAY_MICROS,
+                    chunk.speed[i], chunk.dir[i], chunk.altitude[i], chunk.quality[i]);
+            index++;
+        }
+        return index;
+    }
+
+    private void _check(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Fix " + index + " of " + size());
+        }
+    }
+
+    /**
+     * @return fixes added, with a fix quality and in time order.
+     */
+    public synchronized long getAddedCount() {
+        return mAddedCount;
+    }
+
+    /**
+     * @return fixes dropped by simplification.
+     */
+    public synchronized long getSimplifiedCount() {
+        return mSimplifiedCount;
+    }
+
+    /**
+     * @return fixes dropped because the store was full.
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    private static class Chunk {
+        final int[] lat = new int[CHUNK_SIZE];
+        final int[] lon = new int[CHUNK_SIZE];
+        final long[] time = new long[CHUNK_SIZE];
+        final float[] speed = new float[CHUNK_SIZE];
+        final float[] dir = new float[CHUNK_SIZE];
+        final float[] altitude = new float[CHUNK_SIZE];
+        final byte[] quality = new byte[CHUNK_SIZE];
+    }
+
+    private static final double SCALE = 1e7;
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private final Chunk[] mChunks;
+    private final double mTolerance;
+    private final long mMaxGapMicros;
+    private int mHead;
+    private int mChunkCount;
+    // Fixes stored for good; the pending fix, if any, is written in the slot after them.
+    private int mStored;
+    private boolean mHavePending;
+    private long mLastMicros = -1;
+
+    private boolean mHaveAnchor;
+    private double mAnchorLat;
+    private double mAnchorLon;
+    private double mAnchorCos;
+    private final double[] mWindowX = new double[WINDOW];
+    private final double[] mWindowY = new double[WINDOW];
+    private int mWindowCount;
+    private double mPendingX;
+    private double mPendingY;
+    private double mPendingLat;
+    private double mPendingLon;
+    private long mPendingMicros;
+
+    private long mAddedCount;
+    private long mSimplifiedCount;
+    private long mEvictedCount;
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of Canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.parse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A packet framed directly from bytes by SentenceParser.
+ * The sentence bytes (including the delimiter) are held as received and only decoded to a
+ * String the first time getString() is called. The packet is its own CharSequence view, with
+ * one char per byte, so it can be read without any copy.
+ * Packets leased from a PacketPool go back to it once the last reference is released.
+ */
+public class BytePacket implements IPacket, CharSequence {
+
+    BytePacket(int capacity, PacketPool pool) {
+        mData = new byte[capacity];
+        mPool = pool;
+    }
+
+    /**
+     * Copy the framed sentence into this packet, replacing any previous content.
+     */
+    void set(byte[] src, int offset, int length, boolean valid) {
+        if (length > mData.length) {
+            mData = new byte[length];
+        }
+        System.arraycopy(src, offset, mData, 0, length);
+        mLength = length;
+        mValid = valid;
+        mString = null;
+        mRefCount.set(1);
+    }
+
+    public String getString() {
+        if (mString == null) {
+            mString = new String(mData, 0, mLength, UTF8);
+        }
+        return mString;
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public CharSequence getChars() {
+        return this;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte byteAt(int index) {
+        if (index >= mLength) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mData[index];
+    }
+
+    public ByteBuffer getBytes() {
+        return ByteBuffer.wrap(mData, 0, mLength).asReadOnlyBuffer();
+    }
+
+    public char charAt(int index) {
+        return (char) (byteAt(index) & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new String(mData, start, end - start, LATIN1);
+    }
+
+    /**
+     * @return the same as getString()
+     */
+    @Override
+    public String toString() {
+        return getString();
+    }
+
+    public void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    public void release() {
+        if (mRefCount.decrementAndGet() == 0 && mPool != null) {
+            mPool.recycle(this);
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private final PacketPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private byte[] mData;
+    private int mLength;
+    private boolean mValid;
+    private String mString;
+}
@@ -30,6 +30,48 @@
 
 package canstr.parse;
 
+import java.nio.ByteBuffer;
+
 public interface IPacket {
     String getString();
+
+    /**
+     * @return false if the parser checked the packet's checksum and it was missing or wrong.
+     */
+    boolean isValid();
+
+    /**
+     * A view of the packet as characters, one per byte, which does not copy the packet.
+     * For ascii protocols such as NMEA this reads the same as getString().
+     * @return view of the packet, valid for as long as the packet is.
+     */
+    CharSequence getChars();
+
+    /**
+     * @return number of bytes in the packet, including the delimiter.
+     */
+    int length();
+
+    /**
+     * @param index of the byte, from 0 to length() - 1
+     * @return the byte at index
+     */
+    byte byteAt(int index);
+
+    /**
+     * @return read only buffer over the packet bytes, which does not copy them.
+     */
+    ByteBuffer getBytes();
+
+    /**
+     * Keep the packet beyond the onPacket call it was handed to.
+     * Every retain() must be matched by a release() once the packet is no longer needed.
+     */
+    void retain();
+
+    /**
+     * Give up a reference to the packet. Pooled packets return to their pool when the last
+     * reference is released and must not be used afterwards.
+     */
+    void release();
 }
@@ -30,6 +30,8 @@
 
 package canstr.parse;
 
+import java.nio.ByteBuffer;
+
 public interface IParse {
     /**
      * Parse the given byte stream, looking for a packet.
@@ -37,6 +39,21 @@ public interface IParse {
      */
     void Parse(byte[] data);
 
+    /**
+     * Parse length bytes of the given array starting at offset, looking for a packet.
+     * @param data
+     * @param offset
+     * @param length
+     */
+    void Parse(byte[] data, int offset, int length);
+
+    /**
+     * Parse the remaining bytes of the given buffer, looking for a packet.
+     * On return the buffer position has been advanced to its limit.
+     * @param buffer
+     */
+    void Parse(ByteBuffer buffer);
+
     /**
      * Parse the given string, looking for a packet.
      * @param str
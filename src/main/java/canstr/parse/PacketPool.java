@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of Canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.parse;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of BytePackets which a SentenceParser can lease from instead of allocating a
+ * new packet for every sentence.
+ * A leased packet returns to the pool when its last reference is released, which the parser
+ * does once onPacket completes unless the consumer called retain(). When the pool is empty a new
+ * packet is allocated, and when it is full a returned packet is left for the garbage collector.
+ */
+public class PacketPool {
+
+    /**
+     * @param capacity Maximum number of idle packets held by the pool.
+     * @param packetSize Initial byte capacity of each packet, usually the max sentence size.
+     */
+    public PacketPool(int capacity, int packetSize) {
+        mFree = new ArrayBlockingQueue<BytePacket>(capacity);
+        mPacketSize = packetSize;
+    }
+
+    /**
+     * @return an idle packet, or a newly allocated one if none are idle.
+     */
+    BytePacket lease() {
+        BytePacket packet = mFree.poll();
+        if (packet == null) {
+            mAllocated.incrementAndGet();
+            packet = new BytePacket(mPacketSize, this);
+        }
+        return packet;
+    }
+
+    void recycle(BytePacket packet) {
+        mFree.offer(packet);
+    }
+
+    /**
+     * @return number of packets currently idle in the pool.
+     */
+    public int getIdleCount() {
+        return mFree.size();
+    }
+
+    /**
+     * @return number of packets the pool has had to allocate since it was created.
+     */
+    public long getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    private final ArrayBlockingQueue<BytePacket> mFree;
+    private final int mPacketSize;
+    private final AtomicLong mAllocated = new AtomicLong();
+}
@@ -30,11 +30,17 @@
 
 package canstr.parse;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import canstr.util.PipelineMetrics;
 
 /**
  * Class which implements IParse to parse a byte stream and extract sentences delimited by the
  * given delimiter.
+ * Framing is done on the raw bytes: incoming data is scanned once for the delimiter and copied
+ * into a reusable frame buffer, so bytes are never decoded unless a consumer asks for a String.
+ * The same pass can accumulate an NMEA style checksum, see setChecksumMode().
  */
 public class SentenceParser implements IParse {
     /**
@@ -48,13 +54,29 @@ public class SentenceParser implements IParse {
 
     /**
      *
-     * @param maxSentenceSize If no delimiter is received before byte size received,
-     *                        all data to date is discarded.
+     * @param maxSentenceSize If no delimiter is received before byte size received, the data is
+     *                        discarded up to the last sentence start ('$') seen, or completely
+     *                        if there is none.
      * @param delimiter The byte which delimits packets
      */
     public SentenceParser(int maxSentenceSize, String delimiter) {
-        mDelimiter = delimiter;
-        mPacket = new StreamPacket(maxSentenceSize);
+        this(maxSentenceSize, delimiter, null);
+    }
+
+    /**
+     *
+     * @param maxSentenceSize If no delimiter is received before byte size received, the data is
+     *                        discarded up to the last sentence start ('$') seen, or completely
+     *                        if there is none.
+     * @param delimiter The byte which delimits packets
+     * @param pool Pool to lease packets from, or null to allocate a new packet per sentence.
+     *             Pooled packets are only valid during onPacket unless retained.
+     */
+    public SentenceParser(int maxSentenceSize, String delimiter, PacketPool pool) {
+        mPool = pool;
+        mDelimiter = delimiter.getBytes(UTF8);
+        mDelimiterFailure = _failureTable(mDelimiter);
+        mFrame = new byte[maxSentenceSize];
     }
 
     /**
@@ -64,45 +86,304 @@ public class SentenceParser implements IParse {
      * @param data new data to append to any existing data
      */
     public void Parse(byte[] data) {
-        try {
-            String str = new String(data, "UTF-8");
-            Parse(str);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
+        Parse(data, 0, data.length);
     }
 
     /**
-     * Append the data to previously received data and parse for the sentence delimiter.
-     * On finding a sentence, call onPacket so the inheriting class can overwrite it and deal with
-     * the actual packet.
+     * Append the string to previously received data and parse for the sentence delimiter.
+     * The string is encoded as utf8 and framed exactly as Parse(byte[]) would.
      * @param str new data to append to any existing data
      */
     public void Parse(String str) {
-        StringBuilder incoming = new StringBuilder();
-        incoming.append(str);
-        int location;
-        while ((location = incoming.indexOf(mDelimiter)) >= 0) {
-            boolean ok = mPacket.end(incoming.substring(0, location + mDelimiter.length()));
-            incoming.delete(0, location + mDelimiter.length());
-
-            // If the packet created was ok, then proceed to send it on.
-            if (ok) {
-                onPacket(mPacket);
+        Parse(str.getBytes(UTF8));
+    }
+
+    /**
+     * Append the remaining bytes of the buffer to previously received data and parse for the
+     * sentence delimiter. Buffers without an accessible array (e.g. direct or mapped buffers) are
+     * copied through a small scratch array.
+     * @param buffer new data to append to any existing data
+     */
+    public void Parse(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int length = buffer.remaining();
+            Parse(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+        } else {
+            if (mScratch == null) {
+                mScratch = new byte[SCRATCH_SIZE];
             }
-            // Create a new packet, in case user of onPacket does not clone the previous packet.
-            mPacket = new StreamPacket();
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), mScratch.length);
+                buffer.get(mScratch, 0, length);
+                Parse(mScratch, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Append the bytes to previously received data and parse for the sentence delimiter in a
+     * single pass.
+     * On finding a sentence, call onPacket so the inheriting class can overwrite it and deal with
+     * the actual packet.
+     * @param data array holding the new data
+     * @param offset index of the first new byte
+     * @param length number of new bytes
+     */
+    public void Parse(byte[] data, int offset, int length) {
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null && metrics.isEnabled()) {
+            metrics.add(PipelineMetrics.BYTES, length);
+            mArrivalNanos = System.nanoTime();
         }
-        if (incoming.length() > 0) {
-            mPacket.append(incoming.toString());
+        final byte[] delimiter = mDelimiter;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (mDiscarding && b == RESYNC_BYTE) {
+                mDiscarding = false;
+                mFrameLength = 0;
+                mSumState = SUM_IDLE;
+            }
+            if (!mDiscarding) {
+                if (mFrameLength == mFrame.length) {
+                    _overrun(b);
+                }
+                if (!mDiscarding) {
+                    mFrame[mFrameLength++] = b;
+                    if (mChecksumMode != ChecksumMode.IGNORE) {
+                        _sum(mFrameLength - 1);
+                    }
+                }
+            }
+
+            // Track how much of the delimiter has been matched, even across calls.
+            int matched = mMatched;
+            while (matched > 0 && delimiter[matched] != b) {
+                matched = mDelimiterFailure[matched - 1];
+            }
+            if (delimiter[matched] == b) {
+                matched++;
+            }
+            if (matched == delimiter.length) {
+                matched = 0;
+                // A sentence which overran is dropped, and the next one starts afresh.
+                if (!mDiscarding) {
+                    _emit();
+                }
+                mFrameLength = 0;
+                mDiscarding = false;
+                mSumState = SUM_IDLE;
+            }
+            mMatched = matched;
         }
     }
 
+    /**
+     * Discard the sentence being framed and everything up to the next sentence start ('$') or
+     * delimiter, e.g. once the caller knows bytes have been lost from the stream, so no sentence
+     * is made of the pieces either side of the gap.
+     */
+    public void resync() {
+        mFrameLength = 0;
+        mMatched = 0;
+        mDiscarding = true;
+        mSumState = SUM_IDLE;
+    }
+
     public void onPacket(IPacket packet) {
         // Do nothing, allowing an inheriting class to actually decide what this packet is.
     }
 
-    private StreamPacket mPacket;
-    private String mDelimiter;
-}
+    /**
+     * Set how the '*hh' checksum of each sentence is treated. The checksum is accumulated while
+     * framing, so checking it costs no extra pass over the sentence.
+     * @param mode IGNORE (the default), FLAG or REJECT.
+     */
+    public void setChecksumMode(ChecksumMode mode) {
+        mChecksumMode = mode;
+        mSumState = SUM_IDLE;
+        for (int i = 0; i < mFrameLength; i++) {
+            _sum(i);
+        }
+    }
+
+    public ChecksumMode getChecksumMode() {
+        return mChecksumMode;
+    }
+
+    /**
+     * @return number of sentences whose checksum was missing or wrong, whether rejected or flagged.
+     */
+    public long getChecksumFailureCount() {
+        return mChecksumFailures;
+    }
+
+    /**
+     * @return number of times a sentence outgrew maxSentenceSize and data was discarded.
+     */
+    public long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * Count bytes, overruns and checksum failures into the metrics, and time the arrival of each
+     * chunk of data for subclasses' latency histograms.
+     * @param metrics Metrics to record into, or null to record nothing.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return System.nanoTime() when the data completing the current packet was passed to Parse,
+     * while metrics are being recorded.
+     */
+    protected long getArrivalNanos() {
+        return mArrivalNanos;
+    }
+
+    /**
+     * Hand the completed frame to onPacket.
+     * Without a pool a new packet is created for each sentence, in case user of onPacket does not
+     * clone it. With a pool the packet is released once onPacket returns.
+     */
+    private void _emit() {
+        boolean valid = true;
+        if (mChecksumMode != ChecksumMode.IGNORE) {
+            valid = _checksumMatches();
+            if (!valid) {
+                mChecksumFailures++;
+                if (mMetrics != null) {
+                    mMetrics.increment(PipelineMetrics.CHECKSUM_FAILURES);
+                }
+                if (mChecksumMode == ChecksumMode.REJECT) {
+                    return;
+                }
+            }
+        }
+        if (valid && mMetrics != null) {
+            mMetrics.increment(PipelineMetrics.SENTENCES);
+        }
+        BytePacket packet;
+        if (mPool != null) {
+            packet = mPool.lease();
+        } else {
+            packet = new BytePacket(mFrameLength, null);
+        }
+        packet.set(mFrame, 0, mFrameLength, valid);
+        try {
+            onPacket(packet);
+        } finally {
+            packet.release();
+        }
+    }
+
+    /**
+     * The frame is full and another byte has arrived. Rather than lose everything, keep the data
+     * from the last sentence start onwards; if there is none, discard until the next one.
+     * @param next the byte about to be added
+     */
+    private void _overrun(byte next) {
+        mOverruns++;
+        if (mMetrics != null) {
+            mMetrics.increment(PipelineMetrics.OVERRUNS);
+        }
+        int start = mFrameLength - 1;
+        while (start > 0 && mFrame[start] != RESYNC_BYTE) {
+            start--;
+        }
+        if (start > 0) {
+            mFrameLength -= start;
+            System.arraycopy(mFrame, start, mFrame, 0, mFrameLength);
+        } else {
+            mFrameLength = 0;
+            mDiscarding = next != RESYNC_BYTE;
+        }
+        mSumState = SUM_IDLE;
+        if (mChecksumMode != ChecksumMode.IGNORE) {
+            for (int i = 0; i < mFrameLength; i++) {
+                _sum(i);
+            }
+        }
+    }
 
+    /**
+     * Advance the checksum with the frame byte at index.
+     */
+    private void _sum(int index) {
+        byte b = mFrame[index];
+        if (mSumState == SUM_BODY) {
+            if (b == '*') {
+                mSumState = SUM_DONE;
+                mSumStar = index;
+            } else {
+                mSum ^= b;
+            }
+        } else if (mSumState == SUM_IDLE && (b == '$' || b == '!')) {
+            mSumState = SUM_BODY;
+            mSum = 0;
+        }
+    }
+
+    /**
+     * @return true if the frame has a '*' followed by two hex digits equal to the accumulated sum.
+     */
+    private boolean _checksumMatches() {
+        if (mSumState != SUM_DONE || mSumStar + 2 >= mFrameLength) {
+            return false;
+        }
+        int high = Character.digit(mFrame[mSumStar + 1], 16);
+        int low = Character.digit(mFrame[mSumStar + 2], 16);
+        return high >= 0 && low >= 0 && ((high << 4) | low) == (mSum & 0xff);
+    }
+
+    /**
+     * Build the KMP failure table so multi byte delimiters can be matched one byte at a time.
+     */
+    private static int[] _failureTable(byte[] pattern) {
+        int[] failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    /**
+     * Byte which starts a sentence, used to resynchronise after an overrun.
+     */
+    private static final byte RESYNC_BYTE = '$';
+    private static final int SCRATCH_SIZE = 8192;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SUM_IDLE = 0;
+    private static final int SUM_BODY = 1;
+    private static final int SUM_DONE = 2;
+
+    private final PacketPool mPool;
+    private final byte[] mDelimiter;
+    private final int[] mDelimiterFailure;
+    private final byte[] mFrame;
+    private int mFrameLength;
+    private int mMatched;
+    private boolean mDiscarding;
+    private byte[] mScratch;
+    private ChecksumMode mChecksumMode = ChecksumMode.IGNORE;
+    private int mSumState;
+    private int mSum;
+    private int mSumStar;
+    private long mChecksumFailures;
+    private long mOverruns;
+    private PipelineMetrics mMetrics;
+    private long mArrivalNanos;
+}
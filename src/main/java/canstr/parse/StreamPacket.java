@@ -30,6 +30,9 @@
 
 package canstr.parse;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 public class StreamPacket implements IPacket {
 
     public StreamPacket(int maxSize) {
@@ -53,6 +56,7 @@ public class StreamPacket implements IPacket {
             overrun = true;
         }
         mDataBuilder.append(str);
+        mBytes = null;
     }
 
     /**
@@ -73,10 +77,48 @@ public class StreamPacket implements IPacket {
         return mDataBuilder.toString();
     }
 
+    public boolean isValid() {
+        return true;
+    }
+
+    public CharSequence getChars() {
+        return mDataBuilder;
+    }
+
+    public int length() {
+        return _bytes().length;
+    }
+
+    public byte byteAt(int index) {
+        return _bytes()[index];
+    }
+
+    public ByteBuffer getBytes() {
+        return ByteBuffer.wrap(_bytes()).asReadOnlyBuffer();
+    }
+
+    public void retain() {
+        // Not pooled, nothing to count.
+    }
+
+    public void release() {
+        // Not pooled, nothing to return.
+    }
+
+    private byte[] _bytes() {
+        if (mBytes == null) {
+            mBytes = getString().getBytes(UTF8);
+        }
+        return mBytes;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Use string builder to do the appending
      */
     private StringBuilder mDataBuilder;
+    private byte[] mBytes;
     private int mMaxSize;
     private boolean overrun;
 }
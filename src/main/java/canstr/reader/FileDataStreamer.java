@@ -32,16 +32,41 @@ package canstr.reader;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import canstr.file.TimeIndex;
+import canstr.parse.IParse;
+import canstr.util.PipelineMetrics;
+import es.agroguia.model.LazyFix;
+import es.agroguia.model.NMEA;
 
 /*
  * Class which reads a file (line by line) in a thread and streams the data to callback
  * onDataReceived() method.
  * Each line in the file should be a packet. The line ending in the file is not used, instead
  * the user of this class needs to specify what delimiter they wish to add to the packet.
+ * Files ending in ".gz" are decompressed as they are read, and a directory is replayed as the
+ * sequence of its files in name order, so the segments of a RollingFileLogger replay as one log.
+ * For reprocessing, startBulk() replays the raw bytes as fast as possible straight into an
+ * IParse instead.
+ * setTimeRange() limits start() to part of a log, using its TimeIndex (if it has one) to seek
+ * straight to the start.
  */
 public class FileDataStreamer {
 
@@ -67,12 +92,26 @@ public class FileDataStreamer {
     public void onReceivedData(byte[] data) {
     }
 
+    /**
+     * Limit start() to the lines from startMicros up to and including stopMicros.
+     * Times are as described for TimeIndex: microseconds since midnight of the day the log
+     * starts, carrying on past 24h if the log runs over midnight. Lines without a time go with
+     * the line before them.
+     * An uncompressed file with a TimeIndex sidecar is seeked straight to the start, otherwise it
+     * is read from the beginning.
+     * @param startMicros first time to replay, or -1 to start at the beginning.
+     * @param stopMicros last time to replay, or -1 to continue to the end.
+     */
+    public void setTimeRange(long startMicros, long stopMicros) {
+        mStartMicros = startMicros;
+        mStopMicros = stopMicros;
+    }
+
     public boolean start() throws FileNotFoundException, IOException {
         final File file = _openFile(mFileName);
         boolean started = false;
         if (file != null) {
-            final FileReader fileReader = new FileReader(file);
-            final BufferedReader br = new BufferedReader(fileReader);
+            final BufferedReader br = new BufferedReader(new InputStreamReader(_openRange(file)));
             mReaderThread = new Thread() {
                 public void run() {
                     try {
@@ -85,6 +124,12 @@ public class FileDataStreamer {
                         do {
                             try {
                                 line = br.readLine();
+                                if (line != null && !_inRange(line)) {
+                                    if (mPastRange) {
+                                        break;
+                                    }
+                                    continue;
+                                }
                                 if (line != null) {
                                     String packet = line + mDelimeter;
                                     byte[] data = packet.getBytes();
@@ -95,15 +140,17 @@ public class FileDataStreamer {
                                     running = mRunning;
                                 }
                             } catch (IOException ex) {
-                                String ioex = "";
+                                // A failed read ends the replay rather than retrying forever.
+                                _onError(ex);
+                                line = null;
                             }
                         } while (running && (line != null));
                         br.close();
-                    // Silently ignore exceptions until such time that we add an error callback.
+                    // Errors are counted and kept for getLastError() rather than thrown.
                     } catch (InterruptedException ex) {
-                        String uiex = "";
+                        Thread.currentThread().interrupt();
                     } catch (Exception e) {
-                        String es = "";
+                        _onError(e);
                     }
                 }
             };
@@ -119,6 +166,235 @@ public class FileDataStreamer {
         }
     }
 
+    /**
+     * @return the exception which ended the last start() or startBulk(), or null.
+     */
+    public Exception getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Count errors of start() and startBulk() into the metrics as READ_ERRORS.
+     * @param metrics Metrics to record into, or null.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    private void _onError(Exception ex) {
+        mLastError = ex;
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.increment(PipelineMetrics.READ_ERRORS);
+        }
+    }
+
+    /**
+     * Callbacks for bulk replay, made on the replay thread.
+     */
+    public interface ReplayListener {
+        /**
+         * @param bytesDone bytes handed to the parser so far.
+         * @param bytesTotal size of the file, or -1 if not known (compressed or a directory).
+         */
+        void onProgress(long bytesDone, long bytesTotal);
+
+        void onComplete(long bytesDone);
+
+        void onError(Exception ex);
+    }
+
+    /**
+     * Replay the file in a thread as fast as possible, handing its raw bytes to target in large
+     * slices. There is no cadence and no per line conversion: the file's own line endings are
+     * passed through, so target should use the delimiter the file was written with.
+     * An uncompressed file is memory mapped, a window at a time so files over 2GB work.
+     * @param target parser to receive the bytes.
+     * @param listener progress and completion callbacks, or null.
+     */
+    public boolean startBulk(final IParse target, final ReplayListener listener) {
+        final File file = _openFile(mFileName);
+        if (file == null) {
+            return false;
+        }
+        mRunning = true;
+        mReaderThread = new Thread() {
+            public void run() {
+                try {
+                    long done = replayBulk(file, target, listener);
+                    if (listener != null) {
+                        listener.onComplete(done);
+                    }
+                } catch (Exception ex) {
+                    _onError(ex);
+                    if (listener != null) {
+                        listener.onError(ex);
+                    }
+                }
+            }
+        };
+        mReaderThread.start();
+        return true;
+    }
+
+    /**
+     * Replay the file on the calling thread as described for startBulk(), stopping early if stop()
+     * is called.
+     * @return number of bytes handed to target.
+     */
+    public long replayBulk(File file, IParse target, ReplayListener listener) throws IOException {
+        mRunning = true;
+        if (file.isDirectory() || file.getName().endsWith(".gz")) {
+            return _replayStream(file, target, listener);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        long done = 0;
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            while (done < size && _isRunning()) {
+                long window = Math.min(MAP_WINDOW, size - done);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, done, window);
+                ByteBuffer slice = map.duplicate();
+                int position = 0;
+                while (position < window && _isRunning()) {
+                    int end = (int) Math.min(window, position + (long) SLICE);
+                    slice.limit(end).position(position);
+                    target.Parse(slice);
+                    done += end - position;
+                    position = end;
+                    if (listener != null) {
+                        listener.onProgress(done, size);
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return done;
+    }
+
+    private long _replayStream(File file, IParse target, ReplayListener listener) throws IOException {
+        InputStream in = openStream(file);
+        byte[] buffer = new byte[SLICE];
+        long done = 0;
+        try {
+            int read;
+            while (_isRunning() && (read = in.read(buffer)) >= 0) {
+                target.Parse(buffer, 0, read);
+                done += read;
+                if (listener != null) {
+                    listener.onProgress(done, -1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return done;
+    }
+
+    /**
+     * Open the file for start(), positioned at the start of the time range if it can be seeked.
+     */
+    private InputStream _openRange(File file) throws IOException {
+        mRangeTime = -1;
+        mPastRange = false;
+        if (mStartMicros < 0 && mStopMicros < 0) {
+            return openStream(file);
+        }
+        File indexFile = TimeIndex.indexFileFor(file.getPath());
+        if (mStartMicros < 0 || file.isDirectory() || file.getName().endsWith(".gz") || !indexFile.exists()) {
+            return openStream(file);
+        }
+        TimeIndex index = TimeIndex.load(indexFile);
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(index.offsetAtOrBefore(mStartMicros));
+        mRangeTime = index.timeAtOrBefore(mStartMicros);
+        return in;
+    }
+
+    /**
+     * @return true if the line is within the time range. Sets mPastRange once beyond it.
+     */
+    private boolean _inRange(String line) {
+        if (mStartMicros < 0 && mStopMicros < 0) {
+            return true;
+        }
+        long timeOfDay = TimeIndex.timeOfDay(line, mRangeFix);
+        if (timeOfDay >= 0) {
+            mRangeTime = NMEA.continuous(timeOfDay, mRangeTime);
+        }
+        if (mStopMicros >= 0 && mRangeTime > mStopMicros) {
+            mPastRange = true;
+            return false;
+        }
+        return mStartMicros < 0 || mRangeTime >= mStartMicros;
+    }
+
+    private boolean _isRunning() {
+        synchronized (mLockRunning) {
+            return mRunning;
+        }
+    }
+
+    /**
+     * @return whether a file in a log directory holds log data, rather than being an unfinished
+     * segment or a TimeIndex.
+     */
+    static boolean isSegment(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.endsWith(".part") && !name.endsWith(TimeIndex.SUFFIX);
+    }
+
+    /**
+     * Open the file, or the files of a directory in name order, as one stream, decompressing
+     * any ".gz" file.
+     */
+    static InputStream openStream(File file) throws IOException {
+        if (!file.isDirectory()) {
+            return _openSegment(file);
+        }
+        File[] files = file.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        Arrays.sort(files);
+        final List<File> segments = new ArrayList<File>();
+        for (File segment : files) {
+            if (isSegment(segment)) {
+                segments.add(segment);
+            }
+        }
+        // Open each segment only when the previous one is exhausted.
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            public boolean hasMoreElements() {
+                return mNext < segments.size();
+            }
+
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                File segment = segments.get(mNext++);
+                try {
+                    return _openSegment(segment);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not open " + segment, e);
+                }
+            }
+
+            private int mNext;
+        });
+    }
+
+    private static InputStream _openSegment(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 8192);
+        }
+        return in;
+    }
+
     private File _openFile(String filename) {
         File file = null;
         if (filename != null) {
@@ -127,10 +403,21 @@ public class FileDataStreamer {
         return file;
     }
 
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int SLICE = 1024 * 1024;
+
     private String mFileName;
     private int mCadence;
     private String mDelimeter;
     private Thread mReaderThread;
     private boolean mRunning;
     final private Object mLockRunning = new Object();
+    private volatile Exception mLastError;
+    private volatile PipelineMetrics mMetrics;
+    private long mStartMicros = -1;
+    private long mStopMicros = -1;
+    // Only touched by the reader thread once started.
+    private final LazyFix mRangeFix = new LazyFix();
+    private long mRangeTime;
+    private boolean mPastRange;
 }
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import canstr.parse.IParse;
+
+/**
+ * Reads NMEA from many TCP and UDP sources on a single I/O thread using a Selector, rather than
+ * a blocking thread per socket.
+ * Every source has its own IParse (such as an NmeaParser), so framing state is kept per source;
+ * a target must not be shared between sources. Targets are called on the I/O thread, straight
+ * from a reused direct buffer, so they should hand anything slow off to another thread.
+ * A TCP source which fails to connect, or whose connection drops, is reconnected after a delay
+ * which doubles with each failure up to a maximum, and is reset once data arrives again. A UDP
+ * source which fails is reopened the same way, as is a source whose target throws a
+ * RuntimeException, so one bad source never stops the others.
+ * Sources may be added and removed from any thread, before or after start().
+ */
+public class NetworkIngest {
+
+    /**
+     * Reconnect after 100ms at first, backing off to at most 30s.
+     */
+    public NetworkIngest() {
+        this(100, 30000);
+    }
+
+    /**
+     * @param initialBackoffMs Delay before the first reconnect attempt after a failure.
+     * @param maxBackoffMs Longest delay between reconnect attempts.
+     */
+    public NetworkIngest(long initialBackoffMs, long maxBackoffMs) {
+        mInitialBackoffNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, initialBackoffMs));
+        mMaxBackoffNs = Math.max(mInitialBackoffNs, TimeUnit.MILLISECONDS.toNanos(maxBackoffMs));
+    }
+
+    /**
+     * Start the I/O thread.
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        mSelector = Selector.open();
+        mRunning = true;
+        mThread = new Thread("NetworkIngest") {
+            public void run() {
+                _loop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop the I/O thread, closing and forgetting every source.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Connect to a TCP server sending NMEA.
+     * @param target Parser for this source alone.
+     */
+    public Source addTcp(String host, int port, IParse target) {
+        return _add(new Source(true, host, port, target));
+    }
+
+    /**
+     * Receive NMEA datagrams sent to a local UDP port on any interface.
+     * @param target Parser for this source alone.
+     */
+    public Source addUdp(int port, IParse target) {
+        return _add(new Source(false, null, port, target));
+    }
+
+    /**
+     * Receive NMEA datagrams sent to a local UDP address.
+     * @param host Local address to bind to.
+     * @param target Parser for this source alone.
+     */
+    public Source addUdp(String host, int port, IParse target) {
+        return _add(new Source(false, host, port, target));
+    }
+
+    /**
+     * Stop reading a source and close its channel.
+     */
+    public void remove(final Source source) {
+        if (source._markRemoved()) {
+            mSourceCount.decrementAndGet();
+        }
+        _onIoThread(new Runnable() {
+            public void run() {
+                mSources.remove(source);
+                source._close();
+            }
+        });
+    }
+
+    /**
+     * @return number of sources added and not removed.
+     */
+    public int getSourceCount() {
+        return mSourceCount.get();
+    }
+
+    private Source _add(final Source source) {
+        mSourceCount.incrementAndGet();
+        _onIoThread(new Runnable() {
+            public void run() {
+                if (!source.mRemoved) {
+                    mSources.add(source);
+                    source._open();
+                }
+            }
+        });
+        return source;
+    }
+
+    /**
+     * Queue a change for the I/O thread, which owns the selector and the sources.
+     */
+    private void _onIoThread(Runnable change) {
+        mPending.add(change);
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void _loop() {
+        try {
+            while (mRunning) {
+                Runnable change;
+                while ((change = mPending.poll()) != null) {
+                    try {
+                        change.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                long waitNs = _reopenDue();
+                if (waitNs > 0) {
+                    mSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNs)));
+                } else {
+                    mSelector.select();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Source source = (Source) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isConnectable()) {
+                            source._finishConnect();
+                        } else if (key.isReadable()) {
+                            source._read();
+                        }
+                    } catch (IOException e) {
+                        source._fail(e);
+                    } catch (RuntimeException e) {
+                        // A bad target or an odd channel state fails only its own source.
+                        e.printStackTrace();
+                        source._fail(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            for (Source source : mSources) {
+                if (source._markRemoved()) {
+                    mSourceCount.decrementAndGet();
+                }
+                source._close();
+            }
+            mSources.clear();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reopen every failed source whose backoff has passed.
+     * @return nanoseconds until the next reopen is due, or 0 if none is waiting.
+     */
+    private long _reopenDue() {
+        long now = System.nanoTime();
+        long wait = 0;
+        for (Source source : mSources) {
+            if (source.mChannel != null) {
+                continue;
+            }
+            long remaining = source.mReopenAt - now;
+            if (remaining <= 0) {
+                source._open();
+                if (source.mChannel == null) {
+                    remaining = source.mReopenAt - now;
+                }
+            }
+            if (remaining > 0 && (wait == 0 || remaining < wait)) {
+                wait = remaining;
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * One TCP connection or UDP port. Its state is owned by the I/O thread; the getters are
+     * snapshots safe to call from anywhere.
+     */
+    public class Source {
+
+        Source(boolean tcp, String host, int port, IParse target) {
+            mTcp = tcp;
+            mHost = host;
+            mPort = port;
+            mTarget = target;
+            mBackoffNs = mInitialBackoffNs;
+        }
+
+        /**
+         * @return true while connected (TCP) or bound (UDP).
+         */
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        public long getBytesReceived() {
+            return mBytes;
+        }
+
+        /**
+         * @return number of times the source has been reopened after failing.
+         */
+        public long getReconnectCount() {
+            return mReconnects;
+        }
+
+        /**
+         * @return the exception from the last failure, or null.
+         */
+        public Throwable getLastError() {
+            return mLastError;
+        }
+
+        public String toString() {
+            return (mTcp ? "tcp://" : "udp://") + (mHost == null ? "*" : mHost) + ":" + mPort;
+        }
+
+        private void _open() {
+            if (mOpened) {
+                mReconnects++;
+            }
+            mOpened = true;
+            try {
+                if (mTcp) {
+                    SocketChannel channel = SocketChannel.open();
+                    mChannel = channel;
+                    channel.configureBlocking(false);
+                    if (channel.connect(new InetSocketAddress(mHost, mPort))) {
+                        channel.register(mSelector, SelectionKey.OP_READ, this);
+                        mConnected = true;
+                    } else {
+                        channel.register(mSelector, SelectionKey.OP_CONNECT, this);
+                    }
+                } else {
+                    DatagramChannel channel = DatagramChannel.open();
+                    mChannel = channel;
+                    channel.configureBlocking(false);
+                    channel.bind(mHost == null ? new InetSocketAddress(mPort) : new InetSocketAddress(mHost, mPort));
+                    channel.register(mSelector, SelectionKey.OP_READ, this);
+                    mConnected = true;
+                }
+            } catch (IOException e) {
+                _fail(e);
+            } catch (RuntimeException e) {
+                // e.g. UnresolvedAddressException for an unknown host.
+                _fail(e);
+            }
+        }
+
+        private void _finishConnect() throws IOException {
+            SocketChannel channel = (SocketChannel) mChannel;
+            if (channel.finishConnect()) {
+                channel.register(mSelector, SelectionKey.OP_READ, this);
+                mConnected = true;
+            }
+        }
+
+        private void _read() throws IOException {
+            ByteBuffer buffer = mBuffer;
+            // Bound the work per wakeup so one busy source cannot starve the others.
+            for (int i = 0; i < READS_PER_WAKEUP; i++) {
+                buffer.clear();
+                int read;
+                if (mTcp) {
+                    read = ((SocketChannel) mChannel).read(buffer);
+                    if (read < 0) {
+                        throw new EOFException("Connection closed by " + this);
+                    } else if (read == 0) {
+                        return;
+                    }
+                } else {
+                    if (((DatagramChannel) mChannel).receive(buffer) == null) {
+                        return;
+                    }
+                    read = buffer.position();
+                }
+                buffer.flip();
+                mBytes += read;
+                mBackoffNs = mInitialBackoffNs;
+                mTarget.Parse(buffer);
+            }
+        }
+
+        /**
+         * Close the channel and schedule a reopen after the backoff, which then doubles.
+         */
+        private void _fail(Throwable error) {
+            mLastError = error;
+            _close();
+            mReopenAt = System.nanoTime() + mBackoffNs;
+            mBackoffNs = Math.min(mMaxBackoffNs, mBackoffNs * 2);
+        }
+
+        /**
+         * @return true the first time it is called, so a source is only counted out once.
+         */
+        private synchronized boolean _markRemoved() {
+            if (mRemoved) {
+                return false;
+            }
+            mRemoved = true;
+            return true;
+        }
+
+        private void _close() {
+            mConnected = false;
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mChannel = null;
+            }
+        }
+
+        private final boolean mTcp;
+        private final String mHost;
+        private final int mPort;
+        private final IParse mTarget;
+        private volatile boolean mRemoved;
+        private volatile boolean mConnected;
+        private volatile long mBytes;
+        private volatile long mReconnects;
+        private volatile Throwable mLastError;
+        // Only touched by the I/O thread.
+        private SelectableChannel mChannel;
+        private boolean mOpened;
+        private long mBackoffNs;
+        private long mReopenAt;
+    }
+
+    private static final int READS_PER_WAKEUP = 16;
+
+    private final long mInitialBackoffNs;
+    private final long mMaxBackoffNs;
+    private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+    // Only changed by the I/O thread.
+    private final List<Source> mSources = new CopyOnWriteArrayList<Source>();
+    // Sources added and not yet removed, whether or not the I/O thread has taken them on.
+    private final AtomicInteger mSourceCount = new AtomicInteger();
+    // Only touched by the I/O thread.
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile Selector mSelector;
+    private volatile boolean mRunning;
+    private Thread mThread;
+}
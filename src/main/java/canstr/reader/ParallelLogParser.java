@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import canstr.gps.FixBatch;
+import canstr.gps.NmeaParser;
+import es.agroguia.model.NMEA;
+
+/**
+ * Parses a large log, or a directory of logs, on a fork/join pool instead of a single thread.
+ * The input is cut into chunks of about chunkSize bytes, each ending at a line end, and every
+ * chunk is parsed by its own NmeaParser. An uncompressed file is memory mapped and cut into as
+ * many chunks as its size needs; a ".gz" file cannot be split, so it is one chunk.
+ * Fixes reach the BatchListener either in log order, or as soon as each chunk has them.
+ * Each chunk starts from an empty position, so its first fixes lack any field which only
+ * another sentence type would have carried over from the previous chunk.
+ */
+public class ParallelLogParser {
+
+    /** Default size of the chunks files are cut into. */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Parse on a new pool with a thread per processor.
+     */
+    public ParallelLogParser() {
+        this(new ForkJoinPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool Pool to parse on.
+     * @param chunkSize Approximate number of bytes parsed by each task.
+     */
+    public ParallelLogParser(ForkJoinPool pool, int chunkSize) {
+        mPool = pool;
+        mChunkSize = Math.max(1024, chunkSize);
+    }
+
+    /**
+     * Parse the log, returning when every fix has been delivered.
+     * The listener is called from the pool's threads, but never by two at once. With ordered
+     * set, batches arrive in the order their fixes appear in the log (and a directory's files in
+     * name order); otherwise they arrive as chunks finish, which holds less in memory.
+     * @param filename Log file, or directory of logs, as for FileDataStreamer.
+     * @param listener Receives the fixes.
+     * @param ordered Whether to deliver in log order.
+     * @return number of fixes delivered.
+     */
+    public long parse(String filename, NmeaParser.BatchListener listener, boolean ordered) throws IOException {
+        List<Chunk> chunks = split(new File(filename));
+        Job job = new Job(chunks, listener, ordered);
+        try {
+            mPool.invoke(new ParseTask(job, 0, chunks.size()));
+        } catch (RuntimeException ex) {
+            // The pool may rethrow a copy of the task's exception, wrapping the original.
+            for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw ex;
+        }
+        return job.mFixes.get();
+    }
+
+    /**
+     * Create the parser for one chunk. Override to use another SentenceRegistry or batch size,
+     * but leave the batch listener to the caller.
+     * @param delimiter Line end the chunk uses, "\r" or "\n".
+     */
+    protected NmeaParser createParser(String delimiter) {
+        return new NmeaParser(NMEA.DEFAULT_REGISTRY, null, delimiter);
+    }
+
+    /**
+     * Stop the pool's threads.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Cut the file, or the files of a directory, into chunks ending at line ends.
+     */
+    List<Chunk> split(File file) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        File[] files = new File[] {file};
+        if (file.isDirectory()) {
+            files = file.listFiles();
+            if (files == null) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            Arrays.sort(files);
+        }
+        for (File segment : files) {
+            if (!FileDataStreamer.isSegment(segment)) {
+                continue;
+            }
+            if (segment.getName().endsWith(".gz")) {
+                chunks.add(new Chunk(segment, 0, -1));
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(segment, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                long start = 0;
+                while (start < size) {
+                    long end = start + mChunkSize >= size ? size : _lineEndAfter(channel, start + mChunkSize, size);
+                    chunks.add(new Chunk(segment, start, end));
+                    start = end;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * @return offset just after the first line end at or after position, or size if none.
+     */
+    private static long _lineEndAfter(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\r' || b == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Parse one chunk, handing its batches to the job.
+     * The parser frames on the chunk's own line end, so logs ending lines in "\n" alone parse as
+     * well as those using "\r\n" or "\r".
+     */
+    private void _parseChunk(final Job job, final int index) throws IOException {
+        Chunk chunk = job.mChunks.get(index);
+        final List<FixBatch> batches = job.mOrdered ? new ArrayList<FixBatch>() : null;
+        NmeaParser.BatchListener listener = new NmeaParser.BatchListener() {
+            public void onFixBatch(FixBatch batch) {
+                if (batches != null) {
+                    batches.add(batch.copy());
+                } else {
+                    job.deliver(batch);
+                }
+            }
+        };
+        NmeaParser parser = null;
+        byte delimiter = '\r';
+        byte last = delimiter;
+        if (chunk.mEnd < 0) {
+            InputStream in = FileDataStreamer.openStream(chunk.mFile);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (read > 0) {
+                        if (parser == null) {
+                            delimiter = _lineEnd(ByteBuffer.wrap(buffer, 0, read));
+                            parser = _createParser(delimiter, listener);
+                        }
+                        parser.Parse(buffer, 0, read);
+                        last = buffer[read - 1];
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } else if (chunk.mEnd > chunk.mStart) {
+            RandomAccessFile raf = new RandomAccessFile(chunk.mFile, "r");
+            try {
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        chunk.mStart, chunk.mEnd - chunk.mStart);
+                delimiter = _lineEnd(map);
+                parser = _createParser(delimiter, listener);
+                last = map.get(map.limit() - 1);
+                parser.Parse(map);
+            } finally {
+                raf.close();
+            }
+        }
+        if (parser != null) {
+            if (last != '\r' && last != '\n') {
+                // End the final sentence of a file without a line end.
+                parser.Parse(new byte[] {delimiter}, 0, 1);
+            }
+            parser.flushBatch();
+        }
+        if (batches != null) {
+            job.complete(index, batches);
+        }
+    }
+
+    private NmeaParser _createParser(byte delimiter, NmeaParser.BatchListener listener) {
+        NmeaParser parser = createParser(delimiter == '\n' ? "\n" : "\r");
+        parser.setBatchListener(listener, BATCH_SIZE);
+        return parser;
+    }
+
+    /**
+     * @return the first line end byte after the start of the data, '\n' only if lines end
+     * without a '\r'. Leading line end bytes are skipped, as a chunk may start between the two
+     * bytes of a "\r\n".
+     */
+    private static byte _lineEnd(ByteBuffer data) {
+        int i = data.position();
+        int end = data.limit();
+        while (i < end && (data.get(i) == '\r' || data.get(i) == '\n')) {
+            i++;
+        }
+        for (; i < end; i++) {
+            byte b = data.get(i);
+            if (b == '\r' || b == '\n') {
+                return b;
+            }
+        }
+        return '\r';
+    }
+
+    /**
+     * A range of a file; end is -1 for a whole file which must be streamed.
+     */
+    static class Chunk {
+        Chunk(File file, long start, long end) {
+            mFile = file;
+            mStart = start;
+            mEnd = end;
+        }
+
+        final File mFile;
+        final long mStart;
+        final long mEnd;
+    }
+
+    /**
+     * The state of one parse() call shared by its tasks.
+     */
+    private static class Job {
+        Job(List<Chunk> chunks, NmeaParser.BatchListener listener, boolean ordered) {
+            mChunks = chunks;
+            mListener = listener;
+            mOrdered = ordered;
+            mDone = ordered ? new Object[chunks.size()] : null;
+        }
+
+        synchronized void deliver(FixBatch batch) {
+            mFixes.addAndGet(batch.size());
+            mListener.onFixBatch(batch);
+        }
+
+        /**
+         * Record a finished chunk's batches and deliver every chunk now complete in order.
+         */
+        @SuppressWarnings("unchecked")
+        synchronized void complete(int index, List<FixBatch> batches) {
+            mDone[index] = batches;
+            while (mNext < mDone.length && mDone[mNext] != null) {
+                for (FixBatch batch : (List<FixBatch>) mDone[mNext]) {
+                    deliver(batch);
+                }
+                mDone[mNext++] = DELIVERED;
+            }
+        }
+
+        final List<Chunk> mChunks;
+        final NmeaParser.BatchListener mListener;
+        final boolean mOrdered;
+        final AtomicLong mFixes = new AtomicLong();
+        private final Object[] mDone;
+        private int mNext;
+    }
+
+    /**
+     * Parses the chunks from lo up to hi, halving the range until each task has one chunk.
+     */
+    private class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        ParseTask(Job job, int lo, int hi) {
+            mJob = job;
+            mLo = lo;
+            mHi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (mHi - mLo > 1) {
+                int mid = (mLo + mHi) >>> 1;
+                invokeAll(new ParseTask(mJob, mLo, mid), new ParseTask(mJob, mid, mHi));
+            } else if (mHi > mLo) {
+                try {
+                    _parseChunk(mJob, mLo);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not parse " + mJob.mChunks.get(mLo).mFile, e);
+                }
+            }
+        }
+
+        private final Job mJob;
+        private final int mLo;
+        private final int mHi;
+    }
+
+    private static final int BATCH_SIZE = 1024;
+    private static final Object DELIVERED = new Object();
+
+    private final ForkJoinPool mPool;
+    private final int mChunkSize;
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import canstr.parse.IParse;
+import es.agroguia.model.LazyFix;
+import es.agroguia.model.NMEA;
+
+/**
+ * Replays many NMEA logs together on a small shared thread pool, rather than a thread per file.
+ * Each stream is paced by the timestamps in its own data: a line is sent when the time since
+ * the stream's first timestamp, divided by the speed, has elapsed. Lines without a timestamp go
+ * out with the line before. Between lines a stream holds no thread; it is simply rescheduled for
+ * its next due time, so hundreds of streams can share one or two threads.
+ * How late each stream's lines are sent is tracked, showing when the pool cannot keep up.
+ */
+public class ReplayScheduler {
+
+    /** Speed at which streams are replayed as fast as possible. */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param threads Number of threads shared by all streams.
+     */
+    public ReplayScheduler(int threads) {
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ReplayScheduler-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Start replaying a log, which may be ".gz" or a directory of segments as for
+     * FileDataStreamer.
+     * @param filename log to replay.
+     * @param target parser to receive each line with the delimiter appended.
+     * @param delimiter appended to each line, as the file's own line endings are not passed on.
+     * @param speed 1 for real time, 10 for ten times faster, or MAX_SPEED.
+     * @return the stream, for its lag metrics or to stop it.
+     */
+    public Stream add(String filename, IParse target, String delimiter, double speed) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(FileDataStreamer.openStream(new File(filename)), UTF8));
+        Stream stream = new Stream(filename, reader, target, delimiter == null ? "" : delimiter, speed);
+        mExecutor.execute(stream);
+        return stream;
+    }
+
+    /**
+     * Stop all streams and the threads.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * One log being replayed.
+     */
+    public class Stream implements Runnable {
+
+        Stream(String name, BufferedReader reader, IParse target, String delimiter, double speed) {
+            mName = name;
+            mReader = reader;
+            mTarget = target;
+            mDelimiter = delimiter;
+            mNanosPerMicro = speed > 0 ? 1000 / speed : 0;
+        }
+
+        public void run() {
+            try {
+                for (int lines = 0; lines < LINES_PER_RUN; lines++) {
+                    if (mStopped) {
+                        _finish(null);
+                        return;
+                    }
+                    if (mPending == null) {
+                        mPending = mReader.readLine();
+                        if (mPending == null) {
+                            _finish(null);
+                            return;
+                        }
+                        _schedule(mPending);
+                    }
+                    long now = System.nanoTime();
+                    long late = now - mDueNanos;
+                    if (late < 0) {
+                        mWait = mExecutor.schedule(this, -late, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                    if (mNanosPerMicro > 0) {
+                        mLagNanos = late;
+                        if (late > mMaxLagNanos) {
+                            mMaxLagNanos = late;
+                        }
+                    }
+                    byte[] data = (mPending + mDelimiter).getBytes(UTF8);
+                    mTarget.Parse(data, 0, data.length);
+                    mLinesSent++;
+                    mPending = null;
+                }
+                // Give other streams a turn before carrying on.
+                mExecutor.execute(this);
+            } catch (Exception ex) {
+                _finish(ex);
+            }
+        }
+
+        /**
+         * Stop replaying this stream. No more lines are sent once this returns, other than one
+         * already being parsed.
+         */
+        public void stop() {
+            mStopped = true;
+            ScheduledFuture<?> wait = mWait;
+            if (wait != null && wait.cancel(false)) {
+                // It was waiting for its next line's time, and now will never run to finish.
+                _finish(null);
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return how late the last line was sent, in nanoseconds. Always 0 at MAX_SPEED.
+         */
+        public long getLagNanos() {
+            return mLagNanos;
+        }
+
+        /**
+         * @return the latest any line of this stream has been sent, in nanoseconds.
+         */
+        public long getMaxLagNanos() {
+            return mMaxLagNanos;
+        }
+
+        public long getLinesSent() {
+            return mLinesSent;
+        }
+
+        public boolean isFinished() {
+            return mFinished;
+        }
+
+        /**
+         * @return the exception which ended the stream, or null.
+         */
+        public Exception getError() {
+            return mError;
+        }
+
+        /**
+         * Work out when the line is due from its timestamp, if it has one.
+         */
+        private void _schedule(String line) {
+            double time = mFix.reset(line) ? mFix.getTime() : Double.NaN;
+            if (Double.isNaN(time)) {
+                if (mFirstMicros < 0) {
+                    // Nothing to pace by yet.
+                    mDueNanos = System.nanoTime();
+                }
+                return;
+            }
+            long micros = NMEA.continuous(NMEA.toMicros(time), mLastMicros);
+            if (mFirstMicros < 0) {
+                mFirstMicros = micros;
+                mStartNanos = System.nanoTime();
+            }
+            mLastMicros = micros;
+            mDueNanos = mStartNanos + (long) ((micros - mFirstMicros) * mNanosPerMicro);
+        }
+
+        private void _finish(Exception error) {
+            mError = error;
+            mFinished = true;
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private final String mName;
+        private final BufferedReader mReader;
+        private final IParse mTarget;
+        private final String mDelimiter;
+        private final double mNanosPerMicro;
+        private final LazyFix mFix = new LazyFix();
+        private String mPending;
+        private volatile ScheduledFuture<?> mWait;
+        private long mFirstMicros = -1;
+        private long mLastMicros = -1;
+        private long mStartNanos;
+        private long mDueNanos;
+        private volatile long mLagNanos;
+        private volatile long mMaxLagNanos;
+        private volatile long mLinesSent;
+        private volatile boolean mFinished;
+        private volatile boolean mStopped;
+        private volatile Exception mError;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LINES_PER_RUN = 256;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+}
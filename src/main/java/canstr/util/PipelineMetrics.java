@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the parsing pipeline, shared by the parsers, loggers and
+ * readers given it with setMetrics().
+ * Recording is lock free and allocates nothing: counters and histogram buckets are slots of
+ * atomic arrays, and sentence types are counted in a small fixed open addressed table. A
+ * component without metrics skips recording altogether, and setEnabled(false) turns recording
+ * off for every component sharing these metrics.
+ * Histograms have fixed power of two buckets from 256ns up to about 4s. snapshot() copies
+ * everything out to poll or export.
+ */
+public class PipelineMetrics {
+
+    /** Bytes handed to parsers. */
+    public static final int BYTES = 0;
+    /** Sentences framed whose checksum passed or was not checked. */
+    public static final int SENTENCES = 1;
+    /** Times a sentence outgrew the parser's frame and data was discarded. */
+    public static final int OVERRUNS = 2;
+    /** Sentences whose checksum was missing or wrong. */
+    public static final int CHECKSUM_FAILURES = 3;
+    /** Sentences of a type not in the parser's registry. */
+    public static final int UNKNOWN_SENTENCES = 4;
+    /** Lines an AsyncFileLogger dropped because its queue was full. */
+    public static final int LOGGER_DROPS = 5;
+    /** Errors reading a file being replayed. */
+    public static final int READ_ERRORS = 6;
+
+    /** Bytes arriving to the sentence being framed. */
+    public static final int FRAMING = 0;
+    /** Decoding a sentence into a position. */
+    public static final int DECODE = 1;
+    /** Logging a sentence to file. */
+    public static final int LOGGING = 2;
+    /** Calling the GpsListeners with a position. */
+    public static final int LISTENERS = 3;
+    /** Bytes arriving to every GpsListener having returned. */
+    public static final int END_TO_END = 4;
+
+    public PipelineMetrics() {
+        mCounters = new AtomicLongArray(COUNTER_NAMES.length * STRIDE);
+        mHistograms = new AtomicLongArray(HISTOGRAM_NAMES.length * HISTOGRAM_SIZE);
+        mTypeCodes = new AtomicLongArray(TYPE_SLOTS);
+        mTypeCounts = new AtomicLongArray(TYPE_SLOTS);
+    }
+
+    /**
+     * Turn recording on or off for everything sharing these metrics. Values recorded so far are
+     * kept.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Add one to a counter such as SENTENCES.
+     */
+    public void increment(int counter) {
+        if (mEnabled) {
+            mCounters.incrementAndGet(counter * STRIDE);
+        }
+    }
+
+    /**
+     * Add to a counter such as BYTES.
+     */
+    public void add(int counter, long amount) {
+        if (mEnabled) {
+            mCounters.addAndGet(counter * STRIDE, amount);
+        }
+    }
+
+    /**
+     * Count a sentence by its type, as a SentenceRegistry code such as that of "GGA". Once the
+     * table of types is full, further new types are not counted individually.
+     */
+    public void countType(long code) {
+        if (!mEnabled || code <= 0) {
+            return;
+        }
+        int slot = (int) ((code * 0x9E3779B97F4A7C15L) >>> 58) & (TYPE_SLOTS - 1);
+        for (int probe = 0; probe < TYPE_SLOTS; probe++) {
+            long existing = mTypeCodes.get(slot);
+            if (existing == 0 && mTypeCodes.compareAndSet(slot, 0, code)) {
+                existing = code;
+            } else if (existing == 0) {
+                existing = mTypeCodes.get(slot);
+            }
+            if (existing == code) {
+                mTypeCounts.incrementAndGet(slot);
+                return;
+            }
+            slot = (slot + 1) & (TYPE_SLOTS - 1);
+        }
+    }
+
+    /**
+     * Record a latency in a histogram such as DECODE.
+     */
+    public void record(int histogram, long nanos) {
+        if (!mEnabled) {
+            return;
+        }
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int base = histogram * HISTOGRAM_SIZE;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos >>> FIRST_BUCKET_SHIFT));
+        mHistograms.incrementAndGet(base + COUNT);
+        mHistograms.addAndGet(base + SUM, nanos);
+        mHistograms.incrementAndGet(base + FIRST_BUCKET + bucket);
+        long max;
+        while (nanos > (max = mHistograms.get(base + MAX))) {
+            if (mHistograms.compareAndSet(base + MAX, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of every counter and histogram. Recording carries on meanwhile, so values
+     * may be a moment apart from each other.
+     */
+    public Snapshot snapshot() {
+        long[] counters = new long[COUNTER_NAMES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = mCounters.get(i * STRIDE);
+        }
+        Histogram[] histograms = new Histogram[HISTOGRAM_NAMES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            int base = i * HISTOGRAM_SIZE;
+            long[] buckets = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = mHistograms.get(base + FIRST_BUCKET + b);
+            }
+            histograms[i] = new Histogram(HISTOGRAM_NAMES[i], mHistograms.get(base + COUNT),
+                    mHistograms.get(base + SUM), mHistograms.get(base + MAX), buckets);
+        }
+        Map<String, Long> types = new LinkedHashMap<String, Long>();
+        for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+            long code = mTypeCodes.get(slot);
+            if (code != 0) {
+                types.put(_typeName(code), mTypeCounts.get(slot));
+            }
+        }
+        return new Snapshot(counters, histograms, types);
+    }
+
+    /**
+     * @return the upper bound, in nanoseconds, of a histogram bucket. The last bucket is
+     * unbounded.
+     */
+    public static long bucketUpperBound(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << (FIRST_BUCKET_SHIFT + bucket);
+    }
+
+    private static String _typeName(long code) {
+        StringBuilder name = new StringBuilder();
+        for (; code != 0; code >>>= 8) {
+            name.insert(0, (char) (code & 0xff));
+        }
+        return name.toString();
+    }
+
+    /**
+     * The values of a PipelineMetrics at one moment.
+     */
+    public static class Snapshot {
+        Snapshot(long[] counters, Histogram[] histograms, Map<String, Long> types) {
+            mCounters = counters;
+            mHistograms = histograms;
+            mTypes = Collections.unmodifiableMap(types);
+        }
+
+        /**
+         * @param counter a counter such as BYTES.
+         */
+        public long get(int counter) {
+            return mCounters[counter];
+        }
+
+        /**
+         * @param histogram a histogram such as END_TO_END.
+         */
+        public Histogram getHistogram(int histogram) {
+            return mHistograms[histogram];
+        }
+
+        /**
+         * @return sentence counts by type, such as "GGA" (or the whole address of proprietary
+         * sentences).
+         */
+        public Map<String, Long> getSentenceTypes() {
+            return mTypes;
+        }
+
+        /**
+         * @return the snapshot as "name value" lines, with histogram buckets labelled by their
+         * upper bound in nanoseconds, for logging or a metrics scraper.
+         */
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < mCounters.length; i++) {
+                text.append("canstr_").append(COUNTER_NAMES[i]).append(' ').append(mCounters[i]).append('\n');
+            }
+            for (Map.Entry<String, Long> type : mTypes.entrySet()) {
+                text.append("canstr_sentences{type=\"").append(type.getKey()).append("\"} ")
+                        .append(type.getValue()).append('\n');
+            }
+            for (Histogram histogram : mHistograms) {
+                histogram._append(text);
+            }
+            return text.toString();
+        }
+
+        private final long[] mCounters;
+        private final Histogram[] mHistograms;
+        private final Map<String, Long> mTypes;
+    }
+
+    /**
+     * A latency histogram at one moment.
+     */
+    public static class Histogram {
+        Histogram(String name, long count, long sum, long max, long[] buckets) {
+            mName = name;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+            mBuckets = buckets;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return mean latency in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return number of latencies in the bucket, see bucketUpperBound().
+         */
+        public long getBucket(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        public int getBucketCount() {
+            return mBuckets.length;
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile.
+         * @return upper bound of the bucket holding the percentile, capped at the maximum seen.
+         */
+        public long getPercentile(double fraction) {
+            long target = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int b = 0; b < mBuckets.length; b++) {
+                seen += mBuckets[b];
+                if (seen >= target && seen > 0) {
+                    return Math.min(mMax, bucketUpperBound(b));
+                }
+            }
+            return mMax;
+        }
+
+        private void _append(StringBuilder text) {
+            String prefix = "canstr_latency_" + mName + "_ns";
+            long cumulative = 0;
+            for (int b = 0; b < mBuckets.length; b++) {
+                cumulative += mBuckets[b];
+                long bound = bucketUpperBound(b);
+                text.append(prefix).append("_bucket{le=\"").append(bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(bound))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(prefix).append("_count ").append(mCount).append('\n');
+            text.append(prefix).append("_sum ").append(mSum).append('\n');
+            text.append(prefix).append("_max ").append(mMax).append('\n');
+        }
+
+        private final String mName;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+        private final long[] mBuckets;
+    }
+
+    static final String[] COUNTER_NAMES = {
+            "bytes", "sentences", "overruns", "checksum_failures", "unknown_sentences", "logger_drops", "read_errors"
+    };
+    static final String[] HISTOGRAM_NAMES = {"framing", "decode", "logging", "listeners", "end_to_end"};
+
+    // Counters are spread a cache line apart, so threads counting different things do not
+    // contend for the same line.
+    private static final int STRIDE = 8;
+    private static final int FIRST_BUCKET_SHIFT = 8;
+    private static final int BUCKETS = 26;
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int MAX = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int HISTOGRAM_SIZE = FIRST_BUCKET + BUCKETS;
+    private static final int TYPE_SLOTS = 64;
+
+    private final AtomicLongArray mCounters;
+    private final AtomicLongArray mHistograms;
+    private final AtomicLongArray mTypeCodes;
+    private final AtomicLongArray mTypeCounts;
+    private volatile boolean mEnabled = true;
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of preallocated slots passed from exactly one producer thread to one consumer
+ * thread, so elements are filled in place rather than allocated per hand over.
+ * The producer claim()s the next free slot, fills it and publish()es it; the consumer peek()s
+ * the oldest published slot, reads it and release()s it back. Neither side takes a lock or
+ * does more than one atomic write per element.
+ * The consumer may move between threads provided each hand over is itself synchronised, as an
+ * executor's task submission is.
+ */
+public class SpscRing<E> {
+
+    /**
+     * @param slots The slots to cycle through; the length must be a power of two.
+     */
+    public SpscRing(E[] slots) {
+        if (slots.length == 0 || Integer.bitCount(slots.length) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slots.length);
+        }
+        mSlots = slots;
+        mMask = slots.length - 1;
+    }
+
+    /**
+     * @return the next slot to fill, or null if the ring is full. Producer only.
+     */
+    public E claim() {
+        long tail = mTailLocal;
+        if (tail - mHeadCache > mMask) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache > mMask) {
+                return null;
+            }
+        }
+        return mSlots[(int) (tail & mMask)];
+    }
+
+    /**
+     * Hand the slot returned by the last claim() to the consumer. Producer only.
+     */
+    public void publish() {
+        mTail.lazySet(++mTailLocal);
+    }
+
+    /**
+     * @return the oldest published slot, or null if there is none. Consumer only.
+     */
+    public E peek() {
+        long head = mHeadLocal;
+        if (head >= mTailCache) {
+            mTailCache = mTail.get();
+            if (head >= mTailCache) {
+                return null;
+            }
+        }
+        return mSlots[(int) (head & mMask)];
+    }
+
+    /**
+     * Return the slot from the last peek() to the producer. Consumer only.
+     */
+    public void release() {
+        mHead.lazySet(++mHeadLocal);
+    }
+
+    /**
+     * @return number of published slots not yet released. Only a snapshot; any thread.
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    private final E[] mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    // Producer side.
+    private long mTailLocal;
+    private long mHeadCache;
+    // Consumer side.
+    private long mHeadLocal;
+    private long mTailCache;
+}
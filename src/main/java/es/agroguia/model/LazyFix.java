@@ -0,0 +1,187 @@
+package es.agroguia.model;
+//
+// this software is under the terms of MIT license: http://opensource.org/licenses/MIT
+//
+
+
+import java.util.Arrays;
+
+
+/**
+ * A view of one sentence which decodes fix fields on demand.
+ * reset() only records where each field lies; an accessor decodes its field the first time it
+ * is called and caches the result, so a consumer reading lat and lon pays for those two only.
+ * The fields mirror NMEA.GPSPosition. A sentence is looked up in a SentenceRegistry as NMEA.parse
+ * does, and its fields are found from the NMEA.FieldLayout of the parser registered for it, so
+ * both decode the same sentences the same way.
+ * Accessors return NaN (or -1 for quality) when the sentence does not carry the field or it is
+ * empty. The view reads the sentence in place, so it is only valid while the sentence is.
+ */
+public class LazyFix {
+
+	private static final int MAX_FIELDS = 32;
+
+	// kinds of decoding
+	private static final int NUMBER = 0;
+	private static final int COORDINATE = 1;
+
+	private static final int[] KINDS = new int[] { NUMBER, COORDINATE, COORDINATE, NUMBER, NUMBER, NUMBER, NUMBER };
+
+	private final SentenceRegistry registry;
+	private final NmeaFieldReader reader = new NmeaFieldReader();
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+	private final double[] values = new double[NMEA.FIELD_COUNT];
+	private CharSequence text;
+	private int count;
+	private long address = -1;
+	// field index within the sentence, per NMEA.FIELD_* bit, -1 where the sentence lacks it
+	private final int[] layout = new int[NMEA.FIELD_COUNT];
+	private NMEA.FieldLayout currentLayout;
+	private int decoded;
+
+	/**
+	 * Understand the sentences of NMEA.DEFAULT_REGISTRY.
+	 */
+	public LazyFix() {
+		this(NMEA.DEFAULT_REGISTRY);
+	}
+
+	/**
+	 * @param registry registry to look sentences up in, normally that of the NMEA decoding the
+	 * same sentences. Only parsers which are an NMEA.FieldLayout have fields to read.
+	 */
+	public LazyFix(SentenceRegistry registry) {
+		this.registry = registry;
+		Arrays.fill(layout, -1);
+	}
+
+	/**
+	 * Point the view at a new sentence, recording its field offsets.
+	 * @return false if the text is not an NMEA sentence.
+	 */
+	public boolean reset(CharSequence sentence) {
+		text = sentence;
+		count = 0;
+		decoded = 0;
+		address = -1;
+		if (!reader.reset(sentence)) {
+			setLayout(null);
+			return false;
+		}
+		while (count < MAX_FIELDS && reader.next()) {
+			if (count == 0) {
+				address = reader.getCode();
+			}
+			starts[count] = reader.getFieldStart();
+			ends[count] = reader.getFieldEnd();
+			count++;
+		}
+		NMEA.SentenceParser parser = registry.lookup(address);
+		setLayout(parser instanceof NMEA.FieldLayout ? (NMEA.FieldLayout) parser : null);
+		return true;
+	}
+
+	private void setLayout(NMEA.FieldLayout fieldLayout) {
+		if (fieldLayout == currentLayout) {
+			return;
+		}
+		currentLayout = fieldLayout;
+		for (int bit = 0; bit < NMEA.FIELD_COUNT; bit++) {
+			layout[bit] = fieldLayout != null ? fieldLayout.fieldIndex(1 << bit) : -1;
+		}
+	}
+
+	/**
+	 * @param type sentence type such as "GGA", matching a standard address from any talker, or
+	 * a full address such as "GNGGA" or "PGRMZ".
+	 * @return true if the sentence has that type or address.
+	 */
+	public boolean isType(String type) {
+		if (address < 0) {
+			return false;
+		}
+		long code = SentenceRegistry.code(type, 0, type.length());
+		if (code == address) {
+			return true;
+		}
+		return type.length() == 3 && SentenceRegistry.isStandard(address)
+				&& SentenceRegistry.typeOf(address) == code;
+	}
+
+	/**
+	 * @return true if this sentence carries field, one of the NMEA.FIELD_* bits.
+	 */
+	public boolean hasField(int field) {
+		int index = layout[bitOf(field)];
+		return index >= 0 && index < count;
+	}
+
+	public double getTime() {
+		return get(NMEA.FIELD_TIME);
+	}
+
+	public double getLat() {
+		return get(NMEA.FIELD_LAT);
+	}
+
+	public double getLon() {
+		return get(NMEA.FIELD_LON);
+	}
+
+	public int getQuality() {
+		double quality = get(NMEA.FIELD_QUALITY);
+		return Double.isNaN(quality) ? -1 : (int) quality;
+	}
+
+	public double getAltitude() {
+		return get(NMEA.FIELD_ALTITUDE);
+	}
+
+	public double getVelocity() {
+		return get(NMEA.FIELD_VELOCITY);
+	}
+
+	public double getDir() {
+		return get(NMEA.FIELD_DIR);
+	}
+
+	/**
+	 * Decode a field, or return its cached value if already decoded.
+	 * @param field one of the NMEA.FIELD_* bits.
+	 */
+	public double get(int field) {
+		int bit = bitOf(field);
+		if ((decoded & field) != 0) {
+			return values[bit];
+		}
+		double value = Double.NaN;
+		int index = layout[bit];
+		if (index >= 0 && index < count) {
+			if (KINDS[bit] == COORDINATE) {
+				value = NmeaFieldReader.parseCoordinate(text, starts[index], ends[index], Double.NaN);
+				if (index + 1 < count && starts[index + 1] < ends[index + 1]) {
+					char hemisphere = text.charAt(starts[index + 1]);
+					if (hemisphere == 'S' || hemisphere == 'W') {
+						value = -value;
+					}
+				}
+			} else {
+				value = NmeaFieldReader.parseDouble(text, starts[index], ends[index], Double.NaN);
+			}
+		}
+		values[bit] = value;
+		decoded |= field;
+		return value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if field is not one of the NMEA.FIELD_* bits.
+	 */
+	private static int bitOf(int field) {
+		if (field <= 0 || field > NMEA.FIELD_ALL || (field & (field - 1)) != 0) {
+			throw new IllegalArgumentException("Not a single NMEA.FIELD_* bit: " + field);
+		}
+		return Integer.numberOfTrailingZeros(field);
+	}
+}
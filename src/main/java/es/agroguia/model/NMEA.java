@@ -5,87 +5,181 @@ package es.agroguia.model;
 //
 
 
-import java.util.HashMap;
-import java.util.Map;
-
-
 public class NMEA {
 	
+	// fields of a fix, as bits so that sets of them can be combined
+	public static final int FIELD_TIME = 1;
+	public static final int FIELD_LAT = 1 << 1;
+	public static final int FIELD_LON = 1 << 2;
+	public static final int FIELD_QUALITY = 1 << 3;
+	public static final int FIELD_ALTITUDE = 1 << 4;
+	public static final int FIELD_VELOCITY = 1 << 5;
+	public static final int FIELD_DIR = 1 << 6;
+	public static final int FIELD_COUNT = 7;
+	public static final int FIELD_ALL = (1 << FIELD_COUNT) - 1;
+	
 	// java interfaces
-	interface SentenceParser {
-		public boolean parse(String[] tokens, GPSPosition position);
+	/**
+	 * Decodes the fields of one sentence type. Implementations are registered with a
+	 * SentenceRegistry and shared between NMEA instances, so they must not keep state.
+	 */
+	public interface SentenceParser {
+		/**
+		 * @param fields reader positioned on the address field of the sentence.
+		 * @return true if the sentence carried a position (lat/lon).
+		 */
+		public boolean parse(NmeaFieldReader fields, GPSPosition position);
+	}
+	
+	/**
+	 * Implemented by sentence parsers whose fields sit at fixed positions, so that LazyFix can
+	 * decode a single field of a sentence registered with the parser.
+	 */
+	public interface FieldLayout {
+		/**
+		 * @param field one of the FIELD_* bits.
+		 * @return index of the field in the sentence, the address being field 0, or -1 if the
+		 * sentence does not carry it. A coordinate's hemisphere is the field after it.
+		 */
+		public int fieldIndex(int field);
+	}
+	
+	/**
+	 * A FieldLayout from an array of field indexes in FIELD_* bit order.
+	 */
+	static abstract class FixedLayout implements SentenceParser, FieldLayout {
+		private final int[] indexes;
+		
+		FixedLayout(int... indexes) {
+			this.indexes = indexes;
+		}
+		
+		public int fieldIndex(int field) {
+			return indexes[Integer.numberOfTrailingZeros(field)];
+		}
 	}
 	
 	// utils
-	static float Latitude2Decimal(String lat, String NS) {
-		float med = Float.parseFloat(lat.substring(2))/60.0f;
-		med +=  Float.parseFloat(lat.substring(0, 2));
-		if(NS.startsWith("S")) {
-			med = -med;
+	/** Microseconds in a day. */
+	public static final long DAY_MICROS = 24L * 3600 * 1000000;
+	
+	/**
+	 * Carry a time of day on from the previous time, adding a day when it has passed midnight,
+	 * so that times keep increasing over midnight.
+	 * @param timeOfDayMicros microseconds since midnight, e.g. from toMicros(). A leap second
+	 * (23:59:60) carries on into the next day.
+	 * @param previous the previous time as returned by this method, or -1 if there is none
+	 * @return microseconds since midnight of the day of the first time
+	 */
+	public static long continuous(long timeOfDayMicros, long previous) {
+		timeOfDayMicros %= DAY_MICROS;
+		if (previous < 0) {
+			return timeOfDayMicros;
+		}
+		long time = previous - previous % DAY_MICROS + timeOfDayMicros;
+		if (time < previous - DAY_MICROS / 2) {
+			time += DAY_MICROS;
 		}
-		return med;
+		return time;
+	}
+	
+	/**
+	 * @param time NMEA hhmmss.ss time of day
+	 * @return microseconds since midnight
+	 */
+	public static long toMicros(double time) {
+		long hours = (long) (time / 10000);
+		long minutes = (long) (time / 100) % 100;
+		double seconds = time - hours * 10000 - minutes * 100;
+		return (hours * 3600 + minutes * 60) * 1000000L + Math.round(seconds * 1000000);
 	}
 
-	static float Longitude2Decimal(String lon, String WE) {
-		float med = Float.parseFloat(lon.substring(3))/60.0f;
-		med +=  Float.parseFloat(lon.substring(0, 3));
-		if(WE.startsWith("W")) {
-			med = -med;
-		}
-		return med;
+	/**
+	 * @param micros microseconds since midnight
+	 * @return NMEA hhmmss.ss time of day
+	 */
+	public static double fromMicros(long micros) {
+		long seconds = micros / 1000000;
+		long hhmmss = (seconds / 3600) * 10000 + (seconds / 60 % 60) * 100 + seconds % 60;
+		return hhmmss + (micros % 1000000) / 1e6;
 	}
 
 	// parsers 
-	class GPGGA implements SentenceParser {
-		public boolean parse(String [] tokens, GPSPosition position) {
-			position.time = Float.parseFloat(tokens[1]);
-			position.lat = Latitude2Decimal(tokens[2], tokens[3]);
-			position.lon = Longitude2Decimal(tokens[4], tokens[5]);
-			position.quality = Integer.parseInt(tokens[6]);
-			position.altitude = Float.parseFloat(tokens[9]);
+	static class GGA extends FixedLayout {
+		// time, lat, lon, quality, altitude, velocity, dir
+		GGA() {
+			super(1, 2, 4, 6, 9, -1, -1);
+		}
+		
+		public boolean parse(NmeaFieldReader fields, GPSPosition position) {
+			position.setTime(fields.nextDouble(position.getTime()));
+			position.setLat(fields.nextCoordinate(position.getLat()));
+			position.setLon(fields.nextCoordinate(position.getLon()));
+			position.quality = fields.nextInt(position.quality);
+			fields.skip(2);
+			position.altitude = (float) fields.nextDouble(position.altitude);
 			return true;
 		}
 	}
 	
-	class GPGGL implements SentenceParser {
-		public boolean parse(String [] tokens, GPSPosition position) {
-			position.lat = Latitude2Decimal(tokens[1], tokens[2]);
-			position.lon = Longitude2Decimal(tokens[3], tokens[4]);
-			position.time = Float.parseFloat(tokens[5]);
+	static class GLL extends FixedLayout {
+		// time, lat, lon, quality, altitude, velocity, dir
+		GLL() {
+			super(5, 1, 3, -1, -1, -1, -1);
+		}
+		
+		public boolean parse(NmeaFieldReader fields, GPSPosition position) {
+			position.setLat(fields.nextCoordinate(position.getLat()));
+			position.setLon(fields.nextCoordinate(position.getLon()));
+			position.setTime(fields.nextDouble(position.getTime()));
 			return true;
 		}
 	}
 	
-	class GPRMC implements SentenceParser {
-		public boolean parse(String [] tokens, GPSPosition position) {
-			try {
-				position.time = Float.parseFloat(tokens[1]);
-				position.lat = Latitude2Decimal(tokens[3], tokens[4]);
-				position.lon = Longitude2Decimal(tokens[5], tokens[6]);
-				position.velocity = Float.parseFloat(tokens[7]);
-				position.dir = Float.parseFloat(tokens[8]);
-			} catch (Exception ex) {
-				String test = "";
-			}
+	static class RMC extends FixedLayout {
+		// time, lat, lon, quality, altitude, velocity, dir
+		RMC() {
+			super(1, 3, 5, -1, -1, 7, 8);
+		}
+		
+		public boolean parse(NmeaFieldReader fields, GPSPosition position) {
+			position.setTime(fields.nextDouble(position.getTime()));
+			fields.next();
+			position.setLat(fields.nextCoordinate(position.getLat()));
+			position.setLon(fields.nextCoordinate(position.getLon()));
+			position.velocity = (float) fields.nextDouble(position.velocity);
+			position.dir = (float) fields.nextDouble(position.dir);
 			return true;
 		}
 	}
 	
-	class GPVTG implements SentenceParser {
-		public boolean parse(String [] tokens, GPSPosition position) {
-			position.dir = Float.parseFloat(tokens[3]);
-			return true;
+	static class VTG extends FixedLayout {
+		// time, lat, lon, quality, altitude, velocity, dir
+		VTG() {
+			super(-1, -1, -1, -1, -1, -1, 3);
+		}
+		
+		public boolean parse(NmeaFieldReader fields, GPSPosition position) {
+			fields.skip(2);
+			position.dir = (float) fields.nextDouble(position.dir);
+			return false;
 		}
 	}
 	
-	class GPRMZ implements SentenceParser {
-		public boolean parse(String [] tokens, GPSPosition position) {
-			position.altitude = Float.parseFloat(tokens[1]);
-			return true;
+	static class RMZ extends FixedLayout {
+		// time, lat, lon, quality, altitude, velocity, dir
+		RMZ() {
+			super(-1, -1, -1, -1, 1, -1, -1);
+		}
+		
+		public boolean parse(NmeaFieldReader fields, GPSPosition position) {
+			position.altitude = (float) fields.nextDouble(position.altitude);
+			return false;
 		}
 	}
 	
-	public class GPSPosition {
+	public static class GPSPosition {
+		// Kept as float for existing users; the parsed double is held alongside, see getLat().
 		public float time = 0.0f;
 		public float lat = 0.0f;
 		public float lon = 0.0f;
@@ -94,42 +188,142 @@ public class NMEA {
 		public float dir = 0.0f;
 		public float altitude = 0.0f;
 		public float velocity = 0.0f;
+		// metres, set by canstr.gps.Projection when the parser has one, otherwise NaN
+		public double easting = Double.NaN;
+		public double northing = Double.NaN;
+		
+		private double preciseTime;
+		private double preciseLat;
+		private double preciseLon;
+		
+		/**
+		 * @return time as hhmmss.ss at the precision it was set or parsed with, or the time field
+		 * if that has been assigned directly since.
+		 */
+		public double getTime() {
+			return (float) preciseTime == time ? preciseTime : time;
+		}
+		
+		/**
+		 * @return latitude in degrees at double precision, or the lat field if that has been
+		 * assigned directly since. A float only resolves about a metre.
+		 */
+		public double getLat() {
+			return (float) preciseLat == lat ? preciseLat : lat;
+		}
+		
+		/**
+		 * @return longitude in degrees at double precision, or the lon field if that has been
+		 * assigned directly since.
+		 */
+		public double getLon() {
+			return (float) preciseLon == lon ? preciseLon : lon;
+		}
+		
+		/**
+		 * Set the time, keeping its double precision for getTime() and the float in time.
+		 */
+		public void setTime(double time) {
+			preciseTime = time;
+			this.time = (float) time;
+		}
+		
+		public void setLat(double lat) {
+			preciseLat = lat;
+			this.lat = (float) lat;
+		}
+		
+		public void setLon(double lon) {
+			preciseLon = lon;
+			this.lon = (float) lon;
+		}
 		
 		public void updatefix() {
 			fixed = quality > 0;
 		}
 		
+		/**
+		 * Copy every field of other into this position.
+		 */
+		public void set(GPSPosition other) {
+			time = other.time;
+			lat = other.lat;
+			lon = other.lon;
+			preciseTime = other.preciseTime;
+			preciseLat = other.preciseLat;
+			preciseLon = other.preciseLon;
+			fixed = other.fixed;
+			quality = other.quality;
+			dir = other.dir;
+			altitude = other.altitude;
+			velocity = other.velocity;
+			easting = other.easting;
+			northing = other.northing;
+		}
+		
 		public String toString() {
-			return String.format("POSITION: lat: %f, lon: %f, time: %f, Q: %d, dir: %f, alt: %f, vel: %f", lat, lon, time, quality, dir, altitude, velocity);
+			return String.format("POSITION: lat: %f, lon: %f, time: %f, Q: %d, dir: %f, alt: %f, vel: %f", getLat(), getLon(), getTime(), quality, dir, altitude, velocity);
 		}
 	}
 	
 	GPSPosition position = new GPSPosition();
+	private final NmeaFieldReader fields = new NmeaFieldReader();
+	private boolean newPosition;
+	
+	private final SentenceRegistry registry;
 	
-	private static final Map<String, SentenceParser> sentenceParsers = new HashMap<String, SentenceParser>();
+	/**
+	 * Parsers for the standard sentences, for any talker.
+	 */
+	public static final SentenceRegistry DEFAULT_REGISTRY = SentenceRegistry.EMPTY
+			.with("GGA", FIELD_TIME | FIELD_LAT | FIELD_LON | FIELD_QUALITY | FIELD_ALTITUDE, new GGA())
+			.with("GLL", FIELD_TIME | FIELD_LAT | FIELD_LON, new GLL())
+			.with("RMC", FIELD_TIME | FIELD_LAT | FIELD_LON | FIELD_VELOCITY | FIELD_DIR, new RMC())
+			.with("RMZ", FIELD_ALTITUDE, new RMZ())
+			//only really good GPS devices have this sentence but ...
+			.with("VTG", FIELD_DIR, new VTG());
 	
     public NMEA() {
-    	sentenceParsers.put("GPGGA", new GPGGA());
-    	sentenceParsers.put("GPGGL", new GPGGL());
-    	sentenceParsers.put("GPRMC", new GPRMC());
-    	sentenceParsers.put("GPRMZ", new GPRMZ());
-    	//only really good GPS devices have this sentence but ...
-    	sentenceParsers.put("GPVTG", new GPVTG());
+    	this(DEFAULT_REGISTRY);
     }
     
-	public GPSPosition parse(String line) {
-		
-		if(line.startsWith("$")) {
-			String nmea = line.substring(1);
-			String[] tokens = nmea.split(",");
-			String type = tokens[0];
-			//TODO check crc
-			if(sentenceParsers.containsKey(type)) {
-				sentenceParsers.get(type).parse(tokens, position);
+    /**
+     * @param registry parsers to dispatch sentences to, e.g. DEFAULT_REGISTRY.with(...) to add
+     * proprietary sentences.
+     */
+    public NMEA(SentenceRegistry registry) {
+    	this.registry = registry;
+    }
+    
+	/**
+	 * Decode a sentence into the position. The line is read in place, so any CharSequence view
+	 * of the sentence (such as an IPacket's) can be passed without copying it to a String.
+	 * Fields which are empty leave the previous value in place.
+	 */
+	public GPSPosition parse(CharSequence line) {
+		
+		newPosition = false;
+		if(fields.reset(line) && fields.next()) {
+			// the checksum is verified by canstr.parse.SentenceParser while framing
+			SentenceParser parser = registry.lookup(fields.getCode());
+			if(parser != null) {
+				newPosition = parser.parse(fields, position);
 			}
 			position.updatefix();
 		}
 		
 		return position;
 	}
+	
+	public SentenceRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * @return true if the last sentence parsed carried a position, rather than only
+	 * updating other fields such as direction or altitude.
+	 */
+	public boolean hasNewPosition() {
+		return newPosition;
+	}
 }
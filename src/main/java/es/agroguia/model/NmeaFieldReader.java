@@ -0,0 +1,268 @@
+package es.agroguia.model;
+//
+// this software is under the terms of MIT license: http://opensource.org/licenses/MIT
+//
+
+
+/**
+ * Cursor over the comma separated fields of an NMEA sentence.
+ * The sentence is walked in place and numbers are decoded straight from its characters, so
+ * reading a sentence allocates nothing. Empty or malformed fields yield the supplied default.
+ */
+public class NmeaFieldReader {
+
+	private CharSequence text;
+	private int end;
+	private int pos;
+	private int fieldStart;
+	private int fieldEnd;
+
+	/**
+	 * Start reading a sentence. Surrounding whitespace and delimiters, the leading '$' and a
+	 * trailing '*hh' checksum are not part of any field.
+	 * @return false if the text is not an NMEA sentence.
+	 */
+	public boolean reset(CharSequence sentence) {
+		text = sentence;
+		int start = 0;
+		end = sentence.length();
+		while (start < end && sentence.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && sentence.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end || sentence.charAt(start) != '$') {
+			pos = end + 1;
+			return false;
+		}
+		for (int i = end - 1; i > start && i >= end - 3; i--) {
+			if (sentence.charAt(i) == '*') {
+				end = i;
+				break;
+			}
+		}
+		pos = start + 1;
+		fieldStart = fieldEnd = pos;
+		return true;
+	}
+
+	/**
+	 * Move to the next field.
+	 * @return false if there are no more fields.
+	 */
+	public boolean next() {
+		if (pos > end) {
+			fieldStart = fieldEnd = end;
+			return false;
+		}
+		int i = pos;
+		while (i < end && text.charAt(i) != ',') {
+			i++;
+		}
+		fieldStart = pos;
+		fieldEnd = i;
+		pos = i + 1;
+		return true;
+	}
+
+	/**
+	 * Move past count fields.
+	 */
+	public void skip(int count) {
+		for (int i = 0; i < count; i++) {
+			next();
+		}
+	}
+
+	/**
+	 * @return index in the sentence of the first character of the current field.
+	 */
+	public int getFieldStart() {
+		return fieldStart;
+	}
+
+	/**
+	 * @return index in the sentence just past the last character of the current field.
+	 */
+	public int getFieldEnd() {
+		return fieldEnd;
+	}
+
+	public boolean isEmpty() {
+		return fieldStart == fieldEnd;
+	}
+
+	/**
+	 * @return true if the current field is exactly value.
+	 */
+	public boolean fieldEquals(String value) {
+		int length = fieldEnd - fieldStart;
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(fieldStart + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current field packed into a code by SentenceRegistry.code(), or -1 if it is
+	 * too long to pack.
+	 */
+	public long getCode() {
+		return SentenceRegistry.code(text, fieldStart, fieldEnd);
+	}
+
+	/**
+	 * @return first character of the current field, or defaultValue if it is empty.
+	 */
+	public char getChar(char defaultValue) {
+		return isEmpty() ? defaultValue : text.charAt(fieldStart);
+	}
+
+	public int getInt(int defaultValue) {
+		return parseInt(text, fieldStart, fieldEnd, defaultValue);
+	}
+
+	public double getDouble(double defaultValue) {
+		return parseDouble(text, fieldStart, fieldEnd, defaultValue);
+	}
+
+	/**
+	 * @return the current field as a String. This allocates, unlike the other getters.
+	 */
+	public String getString() {
+		return text.subSequence(fieldStart, fieldEnd).toString();
+	}
+
+	public int nextInt(int defaultValue) {
+		next();
+		return getInt(defaultValue);
+	}
+
+	public double nextDouble(double defaultValue) {
+		next();
+		return getDouble(defaultValue);
+	}
+
+	/**
+	 * Read a ddmm.mmmm (or dddmm.mmmm) field and the hemisphere field after it.
+	 * @return decimal degrees, negative for S or W, or defaultValue if the value is empty.
+	 */
+	public double nextCoordinate(double defaultValue) {
+		next();
+		double degrees = parseCoordinate(text, fieldStart, fieldEnd, Double.NaN);
+		next();
+		if (Double.isNaN(degrees)) {
+			return defaultValue;
+		}
+		char hemisphere = getChar('N');
+		return (hemisphere == 'S' || hemisphere == 'W') ? -degrees : degrees;
+	}
+
+	/**
+	 * Decode an optionally signed integer from text[start, end).
+	 */
+	public static int parseInt(CharSequence text, int start, int end, int defaultValue) {
+		if (start >= end) {
+			return defaultValue;
+		}
+		int i = start;
+		boolean negative = false;
+		char c = text.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+		}
+		if (i == end || end - i > 9) {
+			return defaultValue;
+		}
+		int value = 0;
+		for (; i < end; i++) {
+			c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return defaultValue;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Decode an optionally signed fixed point decimal from text[start, end).
+	 * The digits are accumulated as an integer and scaled once, so values with up to 15
+	 * significant digits are exact to the nearest double.
+	 */
+	public static double parseDouble(CharSequence text, int start, int end, double defaultValue) {
+		if (start >= end) {
+			return defaultValue;
+		}
+		int i = start;
+		boolean negative = false;
+		char c = text.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (digits == MAX_DIGITS) {
+					return parseSlow(text, start, end, defaultValue);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (fraction >= 0) {
+					fraction++;
+				}
+			} else if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else {
+				return defaultValue;
+			}
+		}
+		if (digits == 0) {
+			return defaultValue;
+		}
+		double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Decode an NMEA ddmm.mmmm coordinate from text[start, end) into decimal degrees.
+	 * The degrees are whatever precedes the last two integer digits, so this serves both
+	 * latitude and longitude.
+	 */
+	public static double parseCoordinate(CharSequence text, int start, int end, double defaultValue) {
+		double value = parseDouble(text, start, end, Double.NaN);
+		if (Double.isNaN(value) || value < 0) {
+			return defaultValue;
+		}
+		double degrees = Math.floor(value / 100);
+		return degrees + (value - degrees * 100) / 60.0;
+	}
+
+	private static double parseSlow(CharSequence text, int start, int end, double defaultValue) {
+		try {
+			return Double.parseDouble(text.subSequence(start, end).toString());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	private static final int MAX_DIGITS = 18;
+	private static final double[] POW10 = new double[MAX_DIGITS + 1];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+}
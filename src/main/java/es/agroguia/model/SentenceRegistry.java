@@ -0,0 +1,157 @@
+package es.agroguia.model;
+//
+// this software is under the terms of MIT license: http://opensource.org/licenses/MIT
+//
+
+
+import java.util.Arrays;
+
+
+/**
+ * An immutable table of sentence parsers, looked up by the sentence address packed into a long.
+ * Each address character takes one byte of the code, so "GPGGA" is 0x4750474741 and the code of
+ * the sentence type "GGA" is simply its low three bytes.
+ * A parser may be registered for a type ("GGA"), which matches any talker, for a full address
+ * ("GNGGA") which overrides the type for that talker, or for a proprietary address ("PGRMZ").
+ * Each parser is registered with the NMEA.FIELD_* bits it decodes, so that consumers can work out
+ * which sentences they need from the fields they want.
+ * with() returns a new registry, so a registry can be shared freely once built.
+ */
+public class SentenceRegistry {
+
+	public static final SentenceRegistry EMPTY = new SentenceRegistry(new long[0], new int[0], new NMEA.SentenceParser[0]);
+
+	/** Longest address which can be packed into a code. */
+	public static final int MAX_ADDRESS_LENGTH = 7;
+
+	private final long[] codes;
+	private final int[] fields;
+	private final NMEA.SentenceParser[] parsers;
+
+	private SentenceRegistry(long[] codes, int[] fields, NMEA.SentenceParser[] parsers) {
+		this.codes = codes;
+		this.fields = fields;
+		this.parsers = parsers;
+	}
+
+	/**
+	 * Add a parser which may decode any of the fields.
+	 * @see #with(String, int, NMEA.SentenceParser)
+	 */
+	public SentenceRegistry with(String address, NMEA.SentenceParser parser) {
+		return with(address, NMEA.FIELD_ALL, parser);
+	}
+
+	/**
+	 * @param address sentence type such as "GGA", or full address such as "GNGGA" or "PGRMZ".
+	 * @param fieldBits the NMEA.FIELD_* bits the parser decodes.
+	 * @param parser parser for sentences with that address.
+	 * @return a registry with the parser added, replacing any registered for the same address.
+	 */
+	public SentenceRegistry with(String address, int fieldBits, NMEA.SentenceParser parser) {
+		long code = code(address, 0, address.length());
+		if (code < 0) {
+			throw new IllegalArgumentException("Invalid sentence address: " + address);
+		}
+		int index = Arrays.binarySearch(codes, code);
+		if (index >= 0) {
+			int[] newFields = fields.clone();
+			NMEA.SentenceParser[] newParsers = parsers.clone();
+			newFields[index] = fieldBits;
+			newParsers[index] = parser;
+			return new SentenceRegistry(codes, newFields, newParsers);
+		}
+		index = -index - 1;
+		int size = codes.length;
+		long[] newCodes = new long[size + 1];
+		int[] newFields = new int[size + 1];
+		NMEA.SentenceParser[] newParsers = new NMEA.SentenceParser[size + 1];
+		System.arraycopy(codes, 0, newCodes, 0, index);
+		System.arraycopy(fields, 0, newFields, 0, index);
+		System.arraycopy(parsers, 0, newParsers, 0, index);
+		newCodes[index] = code;
+		newFields[index] = fieldBits;
+		newParsers[index] = parser;
+		System.arraycopy(codes, index, newCodes, index + 1, size - index);
+		System.arraycopy(fields, index, newFields, index + 1, size - index);
+		System.arraycopy(parsers, index, newParsers, index + 1, size - index);
+		return new SentenceRegistry(newCodes, newFields, newParsers);
+	}
+
+	/**
+	 * Find the parser for a sentence address code: the full address first, then the sentence
+	 * type of a standard (non proprietary) address.
+	 * @return the parser, or null if none is registered.
+	 */
+	public NMEA.SentenceParser lookup(long address) {
+		int index = indexOf(address);
+		return index >= 0 ? parsers[index] : null;
+	}
+
+	/**
+	 * @return position of the parser for the address in this registry, from 0 to size() - 1,
+	 * or -1 if none is registered.
+	 */
+	public int indexOf(long address) {
+		if (address < 0) {
+			return -1;
+		}
+		int index = Arrays.binarySearch(codes, address);
+		if (index < 0 && isStandard(address)) {
+			index = Arrays.binarySearch(codes, typeOf(address));
+		}
+		return index >= 0 ? index : -1;
+	}
+
+	/**
+	 * @return the NMEA.FIELD_* bits decoded by the parser at index.
+	 */
+	public int fieldsOf(int index) {
+		return fields[index];
+	}
+
+	public int size() {
+		return codes.length;
+	}
+
+	/**
+	 * Pack the ascii characters text[start, end) into a code, first character highest.
+	 * @return the code, or -1 if the text is empty, too long, or not ascii.
+	 */
+	public static long code(CharSequence text, int start, int end) {
+		if (start >= end || end - start > MAX_ADDRESS_LENGTH) {
+			return -1;
+		}
+		long code = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == 0 || c > 0x7f) {
+				return -1;
+			}
+			code = (code << 8) | c;
+		}
+		return code;
+	}
+
+	/**
+	 * @return true for a five character address which is not proprietary ('P'), i.e. a two
+	 * character talker followed by a three character sentence type.
+	 */
+	public static boolean isStandard(long address) {
+		return (address >>> 32) != 0 && (address >>> 40) == 0 && (address >>> 32) != 'P';
+	}
+
+	/**
+	 * @return the talker code (e.g. "GP") of a standard address.
+	 */
+	public static int talkerOf(long address) {
+		return (int) (address >>> 24);
+	}
+
+	/**
+	 * @return the sentence type code (e.g. "GGA") of a standard address.
+	 */
+	public static int typeOf(long address) {
+		return (int) (address & 0xffffff);
+	}
+}
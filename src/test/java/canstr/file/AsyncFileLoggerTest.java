@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncFileLoggerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writesEveryLineInOrderByClose() throws IOException {
+        AsyncFileLogger logger = new AsyncFileLogger(mFolder.getRoot().getPath(), "log.nmea", 64,
+                AsyncFileLogger.Backpressure.BLOCK, 1000, 4096, AsyncFileLogger.SyncPolicy.ON_CLOSE);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            String line = "$GPGGA," + i + "\r\n";
+            logger.appendLog(line);
+            expected.append(line);
+        }
+        logger.close();
+        assertEquals(expected.toString(), _read(new File(logger.getFileName())));
+        assertEquals(0, logger.getDroppedCount());
+        assertNull(logger.getFailure());
+    }
+
+    @Test
+    public void writesOnceFlushSizeIsBuffered() throws IOException, InterruptedException {
+        // A long interval, so only the flush size can make the writer write.
+        AsyncFileLogger logger = new AsyncFileLogger(mFolder.getRoot().getPath(), "log.nmea", 2,
+                AsyncFileLogger.Backpressure.BLOCK, 60000, 32, AsyncFileLogger.SyncPolicy.ON_CLOSE);
+        File file = new File(logger.getFileName());
+        for (int i = 0; i < 4; i++) {
+            logger.appendLog("$GPGGA,123456.00,1\r\n");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() < 40 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("only " + file.length() + " bytes written", file.length() >= 40);
+        logger.close();
+        assertEquals(80, file.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveFlushSize() {
+        new AsyncFileLogger(mFolder.getRoot().getPath(), "log.nmea", 64,
+                AsyncFileLogger.Backpressure.BLOCK, 1000, 0, AsyncFileLogger.SyncPolicy.ON_CLOSE);
+    }
+
+    private static String _read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return new String(data, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
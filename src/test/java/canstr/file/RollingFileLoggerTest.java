@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollingFileLoggerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void rollsIntoFinishedSegmentsInOrder() throws IOException {
+        File dir = mFolder.getRoot();
+        RollingFileLogger logger = new RollingFileLogger(dir.getPath(), "log.nmea", 1000, 0);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            String line = "$GPGGA," + i + "\r\n";
+            logger.appendLog(line);
+            expected.append(line);
+            if (i == 99 || i == 199) {
+                // Let the writer take a batch, so there is something to roll between.
+                _sleep(1100);
+            }
+        }
+        logger.close();
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        StringBuilder actual = new StringBuilder();
+        for (File segment : segments) {
+            assertTrue(segment.getName(), segment.getName().endsWith(".gz"));
+            actual.append(_gunzip(segment));
+        }
+        assertTrue(segments.length > 1);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void onFlushMakesWrittenLinesReadableBeforeClose() throws IOException {
+        File dir = mFolder.getRoot();
+        RollingFileLogger logger = new RollingFileLogger(dir.getPath(), "log.nmea", 0, 0,
+                AsyncFileLogger.SyncPolicy.ON_FLUSH);
+        logger.appendLog("$GPGGA,1\r\n");
+        File part = new File(logger.getFileName() + ".part");
+        String read = "";
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!read.equals("$GPGGA,1\r\n") && System.currentTimeMillis() < deadline) {
+            _sleep(50);
+            if (part.exists()) {
+                read = _gunzip(part);
+            }
+        }
+        assertEquals("$GPGGA,1\r\n", read);
+        logger.close();
+    }
+
+    @Test
+    public void recoversTheCompleteLinesOfAnOrphanedPart() throws IOException {
+        File dir = mFolder.getRoot();
+        File part = new File(dir, "20261017_120000-log.nmea-0003.gz.part");
+        FileOutputStream file = new FileOutputStream(part);
+        GZIPOutputStream gzip = new GZIPOutputStream(file, 8192, true);
+        gzip.write("$GPGGA,1\r\n$GPGGA,2\r\n$GPG".getBytes("US-ASCII"));
+        gzip.flush();
+        // A crash: the stream is never finished.
+        file.close();
+        File other = new File(dir, "20261017_120000-other-0000.gz.part");
+        assertTrue(other.createNewFile());
+
+        RollingFileLogger logger = new RollingFileLogger(dir.getPath(), "log.nmea", 0, 0);
+        logger.close();
+
+        assertFalse(part.exists());
+        assertTrue(other.exists());
+        assertEquals("$GPGGA,1\r\n$GPGGA,2\r\n",
+                _gunzip(new File(dir, "20261017_120000-log.nmea-0003.gz")));
+    }
+
+    @Test
+    public void refusesTimeIndexing() {
+        RollingFileLogger logger = new RollingFileLogger(mFolder.getRoot().getPath(), "log.nmea", 0, 0);
+        assertFalse(logger.setTimeIndexing(true));
+        assertFalse(logger.isTimeIndexing());
+        assertTrue(logger.setTimeIndexing(false));
+        logger.close();
+    }
+
+    /**
+     * @return what can be decompressed from the file, which need not be finished.
+     */
+    private static String _gunzip(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            in = new GZIPInputStream(in);
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (EOFException e) {
+            // Unfinished, keep what came before.
+        } finally {
+            in.close();
+        }
+        return out.toString("US-ASCII");
+    }
+
+    private static void _sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.agroguia.model.NMEA;
+
+public class TimeIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Write a log of one GGA a second from 23:00 until 01:00 the next day.
+     */
+    @Before
+    public void setUp() throws IOException {
+        mLog = mFolder.newFile("track.nmea");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            mOffsets.add((long) text.length());
+            int seconds = (23 * 3600 + i) % (24 * 3600);
+            String line = String.format(Locale.US, "$GPGGA,%02d%02d%02d.00,4338.5540,N,07923.2283,W,1,08,0.9,100.0,M,,,,*00",
+                    seconds / 3600, seconds / 60 % 60, seconds % 60);
+            mLines.add(line);
+            text.append(line).append("\r\n");
+        }
+        FileOutputStream out = new FileOutputStream(mLog);
+        try {
+            out.write(text.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void buildsSparseIndex() throws IOException {
+        TimeIndex index = TimeIndex.build(mLog.getPath());
+        assertTrue(TimeIndex.indexFileFor(mLog.getPath()).exists());
+        long entries = (mLog.length() + TimeIndex.DEFAULT_INTERVAL - 1) / TimeIndex.DEFAULT_INTERVAL;
+        assertEquals(entries, index.size());
+        assertEquals(entries * TimeIndex.ENTRY_SIZE, TimeIndex.indexFileFor(mLog.getPath()).length());
+    }
+
+    @Test
+    public void seeksToLineAtOrBeforeTime() throws IOException {
+        TimeIndex index = TimeIndex.build(mLog.getPath());
+        for (int line = 0; line < LINES; line += 97) {
+            long time = _time(line);
+            long offset = index.offsetAtOrBefore(time);
+            int found = mOffsets.indexOf(offset);
+            assertTrue("offset " + offset + " is not a line start", found >= 0);
+            assertTrue(found <= line);
+            // The entry is never more than one interval of log behind.
+            assertTrue(mOffsets.get(line) - offset < TimeIndex.DEFAULT_INTERVAL + LINE_LENGTH);
+            assertEquals(_time(found), index.timeAtOrBefore(time));
+        }
+    }
+
+    @Test
+    public void timesCarryOnPastMidnight() throws IOException {
+        TimeIndex index = TimeIndex.build(mLog.getPath());
+        long afterMidnight = NMEA.DAY_MICROS + 30 * 60 * 1000000L;
+        long offset = index.offsetAtOrBefore(afterMidnight);
+        assertTrue(offset > mOffsets.get(3600));
+        assertTrue(index.timeAtOrBefore(afterMidnight) > NMEA.DAY_MICROS);
+        assertEquals(0, index.offsetAtOrBefore(0));
+        assertEquals(-1, index.timeAtOrBefore(0));
+    }
+
+    @Test
+    public void writerCarriesOnExistingIndex() throws IOException {
+        File indexFile = TimeIndex.indexFileFor(mLog.getPath());
+        int half = LINES / 2;
+        TimeIndexWriter writer = new TimeIndexWriter(indexFile, 1000);
+        for (int line = 0; line < half; line++) {
+            writer.onLine(mLines.get(line), mOffsets.get(line));
+        }
+        writer.close();
+        writer = new TimeIndexWriter(indexFile, 1000);
+        for (int line = half; line < LINES; line++) {
+            writer.onLine(mLines.get(line), mOffsets.get(line));
+        }
+        writer.close();
+        TimeIndex index = TimeIndex.load(indexFile);
+        long last = -1;
+        for (int line = 0; line < LINES; line += 50) {
+            long time = index.timeAtOrBefore(_time(line));
+            assertTrue(time >= last);
+            last = time;
+        }
+        // Entries fall on line starts at least 1000 bytes apart, so the last is within 1000 bytes
+        // and a line of the end.
+        long lag = _time(LINES - 1) - index.timeAtOrBefore(Long.MAX_VALUE);
+        assertTrue(lag >= 0 && lag <= LINE_TIME * (1000 / LINE_LENGTH + 1));
+        // The second writer spaced its first entry from the first writer's last one.
+        assertTrue(index.size() <= mLog.length() / 1000 + 1);
+    }
+
+    /**
+     * @return indexed time of a line, counting on from the first day.
+     */
+    private static long _time(int line) {
+        return (23 * 3600L + line) * LINE_TIME;
+    }
+
+    private static final int LINES = 7200;
+    private static final int LINE_LENGTH = 74;
+    private static final long LINE_TIME = 1000000;
+
+    private File mLog;
+    private final List<String> mLines = new ArrayList<String>();
+    private final List<Long> mOffsets = new ArrayList<Long>();
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CoverageIndexTest {
+
+    @Test
+    public void marksTheStripSweptByTheBar() {
+        CoverageIndex index = new CoverageIndex(6, 0.5, 0, 5000000);
+        _drive(index, 0, 0, 0, 100, 0);
+        index.flush();
+        assertEquals(600, index.getCoveredArea(), 600 * 0.02);
+        assertTrue(index.isCovered(_lat(50), _lon(2.5)));
+        assertFalse(index.isCovered(_lat(50), _lon(3.5)));
+        assertFalse(index.isCovered(_lat(105), _lon(0)));
+        assertEquals(1, index.getCoverage(_lat(50), _lon(0), 0, 5), 0);
+        assertEquals(0.5, index.getCoverage(_lat(50), _lon(3), 0, 6), 0.1);
+    }
+
+    @Test
+    public void marksAcrossTilesAndBelowTheOrigin() {
+        CoverageIndex index = new CoverageIndex(4, 0.5, 0, 5000000);
+        // South west, into negative cells over several tiles.
+        _drive(index, 0, 0, -80, -80, 0);
+        index.flush();
+        assertTrue(index.getTileCount() > 4);
+        assertTrue(index.isCovered(_lat(-40), _lon(-40)));
+        assertFalse(index.isCovered(_lat(-40), _lon(-30)));
+        assertEquals(Math.hypot(80, 80) * 4, index.getCoveredArea(), Math.hypot(80, 80) * 4 * 0.05);
+    }
+
+    @Test
+    public void lagsMarkingBehindTheImplement() {
+        CoverageIndex index = new CoverageIndex(6, 0.5);
+        _drive(index, 0, 0, 0, 50, 0);
+        // The ground just driven over is not yet worked under the bar, but further back is.
+        assertEquals(0, index.getCoverage(_lat(49), _lon(0), 0, 6), 0);
+        assertEquals(1, index.getCoverage(_lat(30), _lon(0), 0, 6), 0);
+        index.flush();
+        assertEquals(1, index.getCoverage(_lat(49), _lon(0), 0, 6), 0);
+    }
+
+    @Test
+    public void skipsGapsAndFixesWithoutQuality() {
+        CoverageIndex index = new CoverageIndex(6, 0.5, 0, 5000000);
+        _drive(index, 0, 0, 0, 20, 0);
+        // Ten seconds without a fix, then carry on from 80m.
+        _drive(index, 0, 80, 0, 100, 30000000);
+        index.add(_lat(200), _lon(0), START + 60000000, 0);
+        index.flush();
+        assertTrue(index.isCovered(_lat(10), _lon(0)));
+        assertFalse(index.isCovered(_lat(50), _lon(0)));
+        assertTrue(index.isCovered(_lat(90), _lon(0)));
+        assertFalse(index.isCovered(_lat(150), _lon(0)));
+    }
+
+    /**
+     * Drive in a straight line from (x0, y0) to (x1, y1) metres at a metre a second, a fix a second.
+     */
+    private static void _drive(CoverageIndex index, double x0, double y0, double x1, double y1, long startOffset) {
+        int steps = (int) Math.round(Math.hypot(x1 - x0, y1 - y0));
+        for (int i = 0; i <= steps; i++) {
+            double x = x0 + (x1 - x0) * i / steps;
+            double y = y0 + (y1 - y0) * i / steps;
+            index.add(_lat(y), _lon(x), START + startOffset + i * 1000000L, 1);
+        }
+    }
+
+    private static double _lat(double northMetres) {
+        return LAT + Math.toDegrees(northMetres / EARTH_RADIUS);
+    }
+
+    private static double _lon(double eastMetres) {
+        return LON + Math.toDegrees(eastMetres / EARTH_RADIUS / Math.cos(Math.toRadians(LAT)));
+    }
+
+    private static final double LAT = 40.0;
+    private static final double LON = -3.0;
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final long START = 10 * 3600 * 1000000L;
+}
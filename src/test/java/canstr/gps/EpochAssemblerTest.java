@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.agroguia.model.NMEA;
+
+public class EpochAssemblerTest {
+
+    @Test
+    public void emitsEachEpochWhenTheNextStarts() {
+        EpochAssembler assembler = _assembler(0);
+        assembler.onSentence(_fix(120001, 40.0, 1, 0), GGA);
+        assembler.onSentence(_fix(120001, 40.0, 1, 5), RMC);
+        assertEquals(0, mFixes.size());
+        assembler.onSentence(_fix(120002, 40.0, 1, 5), GGA);
+        assertEquals(1, mFixes.size());
+        // Merged from both sentences of the epoch.
+        assertEquals(120001, mFixes.get(0).getTime(), 0);
+        assertEquals(1, mFixes.get(0).quality);
+        assertEquals(5, mFixes.get(0).velocity, 0);
+        assembler.flush();
+        assertEquals(2, mFixes.size());
+        assertEquals(2, assembler.getEpochCount());
+    }
+
+    @Test
+    public void emitsOnceTheRequiredFieldsHaveArrived() {
+        EpochAssembler assembler = _assembler(GGA | RMC);
+        assembler.onSentence(_fix(120001, 40.0, 1, 0), GGA);
+        assertEquals(0, mFixes.size());
+        assembler.onSentence(_fix(120001, 40.0, 1, 5), RMC);
+        assertEquals(1, mFixes.size());
+        // A late sentence of the same epoch is merged but not emitted again.
+        assembler.onSentence(_fix(120001, 40.0, 1, 5), NMEA.FIELD_DIR);
+        assembler.onSentence(_fix(120002, 40.0, 1, 5), GGA);
+        assembler.flush();
+        assertEquals(2, mFixes.size());
+        assertEquals(2, assembler.getEmittedCount());
+    }
+
+    @Test
+    public void holdsBackFixesInsideTheDeadband() {
+        EpochAssembler assembler = _assembler(GGA);
+        assembler.setDeadband(5, 0, 0);
+        double metre = 1 / Math.toRadians(6371008.8);
+        assembler.onSentence(_fix(120001, 40.0, 1, 0), GGA);
+        assembler.onSentence(_fix(120002, 40.0 + metre, 1, 0), GGA);
+        assembler.onSentence(_fix(120003, 40.0 + 2 * metre, 1, 0), GGA);
+        assembler.onSentence(_fix(120004, 40.0 + 10 * metre, 1, 0), GGA);
+        // A change of fix quality always gets through.
+        assembler.onSentence(_fix(120005, 40.0 + 10 * metre, 4, 0), GGA);
+        assertEquals(3, mFixes.size());
+        assertEquals(5, assembler.getEpochCount());
+        assertEquals(2, assembler.getSuppressedCount());
+    }
+
+    @Test
+    public void decimatesToTheMinimumInterval() {
+        EpochAssembler assembler = _assembler(GGA);
+        assembler.setMinInterval(150000);
+        for (int i = 0; i < 10; i++) {
+            assembler.onSentence(_fix(120001 + i / 10.0, 40.0, 1, 0), GGA);
+        }
+        assertEquals(5, mFixes.size());
+        assertEquals(120001.2, mFixes.get(1).getTime(), 1e-6);
+    }
+
+    private EpochAssembler _assembler(int requiredFields) {
+        EpochAssembler assembler = new EpochAssembler(requiredFields);
+        assembler.addGpsListener(new NmeaParser.GpsListener() {
+            public void onGpsPosition(NMEA.GPSPosition gps) {
+                NMEA.GPSPosition copy = new NMEA.GPSPosition();
+                copy.set(gps);
+                mFixes.add(copy);
+            }
+        });
+        return assembler;
+    }
+
+    private static NMEA.GPSPosition _fix(double time, double lat, int quality, float knots) {
+        NMEA.GPSPosition gps = new NMEA.GPSPosition();
+        gps.setTime(time);
+        gps.setLat(lat);
+        gps.setLon(-3.0);
+        gps.quality = quality;
+        gps.updatefix();
+        gps.velocity = knots;
+        return gps;
+    }
+
+    private static final int GGA = NMEA.FIELD_TIME | NMEA.FIELD_LAT | NMEA.FIELD_LON | NMEA.FIELD_QUALITY;
+    private static final int RMC = NMEA.FIELD_TIME | NMEA.FIELD_VELOCITY | NMEA.FIELD_DIR;
+
+    private final List<NMEA.GPSPosition> mFixes = new ArrayList<NMEA.GPSPosition>();
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.agroguia.model.NMEA;
+
+public class FixJournalTest {
+
+    @Test
+    public void replaysWhatWasWritten() throws IOException {
+        byte[] journal = _write(1000, 100);
+        Recorder recorder = new Recorder();
+        FixJournalReader reader = new FixJournalReader(new ByteArrayInputStream(journal));
+        assertEquals(1000, reader.replay(recorder));
+        assertEquals(0, reader.getCorruptBlockCount());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 100000L, recorder.times.get(i).longValue());
+            NMEA.GPSPosition gps = recorder.positions.get(i);
+            assertEquals(_lat(i), gps.getLat(), 1e-7);
+            assertEquals(-79.387139, gps.getLon(), 1e-7);
+            assertEquals(101.25, gps.altitude, 0.01);
+            assertEquals(4.5, gps.velocity, 0.01);
+            assertEquals(i % 360, gps.dir, 0.01);
+            assertEquals(4, gps.quality);
+        }
+    }
+
+    @Test
+    public void skipsDamagedBlocksAndKeepsTheRest() throws IOException {
+        byte[] journal = _write(1000, 100);
+        List<Integer> markers = _markers(journal);
+        assertEquals(10, markers.size());
+        // Damage the payload of block 2 and the marker of block 5, and cut the last block short.
+        journal[markers.get(2) + 20] ^= 0x55;
+        journal[markers.get(5)] = 0;
+        journal = Arrays.copyOf(journal, markers.get(9) + 30);
+
+        Recorder recorder = new Recorder();
+        FixJournalReader reader = new FixJournalReader(new ByteArrayInputStream(journal));
+        assertEquals(700, reader.replay(recorder));
+        assertEquals(3, reader.getCorruptBlockCount());
+        long last = -1;
+        for (long time : recorder.times) {
+            assertTrue(time > last);
+            last = time;
+            long block = time / 100000 / 100;
+            assertTrue(block != 2 && block != 5 && block != 9);
+        }
+    }
+
+    @Test
+    public void resyncsAfterDamagedBlockHeader() throws IOException {
+        byte[] journal = _write(300, 100);
+        List<Integer> markers = _markers(journal);
+        // A fix count far beyond the block's payload.
+        journal[markers.get(1) + 4] = (byte) 0xff;
+        journal[markers.get(1) + 5] = (byte) 0x7f;
+
+        FixJournalReader reader = new FixJournalReader(new ByteArrayInputStream(journal));
+        assertEquals(200, reader.replay(new Recorder()));
+        assertEquals(1, reader.getCorruptBlockCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBlocks() {
+        new FixJournalWriter(new ByteArrayOutputStream(), 0);
+    }
+
+    private static byte[] _write(int fixes, int fixesPerBlock) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FixJournalWriter writer = new FixJournalWriter(out, fixesPerBlock);
+        NMEA.GPSPosition gps = new NMEA.GPSPosition();
+        gps.setLon(-79.387139);
+        gps.altitude = 101.25f;
+        gps.velocity = 4.5f;
+        gps.quality = 4;
+        for (int i = 0; i < fixes; i++) {
+            gps.setTime(NMEA.fromMicros(i * 100000L));
+            gps.setLat(_lat(i));
+            gps.dir = i % 360;
+            writer.onGpsPosition(gps);
+        }
+        writer.close();
+        assertEquals(fixes, writer.getFixCount());
+        return out.toByteArray();
+    }
+
+    private static double _lat(int i) {
+        return 43.642567 + i * 1e-6;
+    }
+
+    /**
+     * @return offset of every block's sync marker.
+     */
+    private static List<Integer> _markers(byte[] journal) {
+        byte[] sync = FixJournalWriter.SYNC;
+        List<Integer> markers = new ArrayList<Integer>();
+        for (int i = 0; i + sync.length <= journal.length; i++) {
+            if (Arrays.equals(sync, Arrays.copyOfRange(journal, i, i + sync.length))) {
+                markers.add(i);
+            }
+        }
+        return markers;
+    }
+
+    private static class Recorder implements NmeaParser.GpsListener {
+        public void onGpsPosition(NMEA.GPSPosition gps) {
+            times.add(NMEA.toMicros(gps.getTime()));
+            NMEA.GPSPosition copy = new NMEA.GPSPosition();
+            copy.set(gps);
+            positions.add(copy);
+        }
+
+        final List<Long> times = new ArrayList<Long>();
+        final List<NMEA.GPSPosition> positions = new ArrayList<NMEA.GPSPosition>();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import canstr.parse.ChecksumMode;
+import es.agroguia.model.NMEA;
+
+public class NmeaParserTest {
+
+    @Test
+    public void decodesSentencesWithoutChecksumsByDefault() {
+        NmeaParser parser = new NmeaParser();
+        Recorder recorder = new Recorder();
+        parser.addGpsListener(recorder);
+        parser.Parse(GGA + "\r\n" + GGA_NO_SUM + "\r\n");
+        assertEquals(2, recorder.lats.size());
+        assertEquals(43.64257, recorder.lats.get(1), 1e-5);
+    }
+
+    @Test
+    public void skipsSentencesFailingChecksumWhenFlagging() {
+        NmeaParser parser = new NmeaParser();
+        parser.setChecksumMode(ChecksumMode.FLAG);
+        Recorder recorder = new Recorder();
+        parser.addGpsListener(recorder);
+        parser.Parse(GGA + "\r\n" + GGA_NO_SUM + "\r\n" + GGA.replace("*", "0*") + "\r\n");
+        assertEquals(1, recorder.lats.size());
+        assertEquals(2, parser.getChecksumFailureCount());
+    }
+
+    @Test
+    public void decodesTheSameSplitAtEveryByte() {
+        String log = GGA + "\r\n" + GGA_NO_SUM + "\r\n";
+        for (int split = 0; split <= log.length(); split++) {
+            NmeaParser parser = new NmeaParser();
+            Recorder recorder = new Recorder();
+            parser.addGpsListener(recorder);
+            parser.Parse(log.substring(0, split));
+            parser.Parse(log.substring(split));
+            assertEquals("split at " + split, 2, recorder.lats.size());
+        }
+    }
+
+    private static class Recorder implements NmeaParser.GpsListener {
+        public void onGpsPosition(NMEA.GPSPosition gps) {
+            lats.add(gps.getLat());
+        }
+
+        final List<Double> lats = new ArrayList<Double>();
+    }
+
+    private static final String GGA_NO_SUM = "$GPGGA,123519.00,4338.5540,N,07923.2283,W,1,08,0.9,100.0,M,,,,";
+    private static final String GGA;
+
+    static {
+        int sum = 0;
+        for (int i = 1; i < GGA_NO_SUM.length(); i++) {
+            sum ^= GGA_NO_SUM.charAt(i);
+        }
+        GGA = String.format("%s*%02X", GGA_NO_SUM, sum);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import es.agroguia.model.NMEA;
+
+public class ProjectionTest {
+
+    @Test
+    public void projectsUtmReferencePoints() {
+        // CN Tower, Toronto.
+        _assertUtm(43.642567, -79.387139, 17, 630084.30, 4833438.59);
+        _assertUtm(51.2, 7.5, 32, 395201.31, 5673135.24);
+        // On a central meridian the easting is the false easting and the northing the scaled
+        // meridian arc.
+        _assertUtm(0, 3, 31, 500000, 0);
+        _assertUtm(60, 9, 32, 500000, 6651411.19);
+    }
+
+    @Test
+    public void usesFalseNorthingInSouth() {
+        NMEA.GPSPosition gps = _position(-0.0, 3);
+        Projection.utm(31, false).project(gps);
+        assertEquals(500000, gps.easting, MM);
+        assertEquals(10000000, gps.northing, MM);
+    }
+
+    @Test
+    public void choosesStandardZone() {
+        assertEquals(1, Projection.utmZone(-180));
+        assertEquals(17, Projection.utmZone(-79.387139));
+        assertEquals(31, Projection.utmZone(0));
+        assertEquals(60, Projection.utmZone(179.99));
+        assertEquals(60, Projection.utmZone(180));
+        assertSame(Projection.utm(32, true), Projection.utmFor(51.2, 7.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadZone() {
+        Projection.utm(61, true);
+    }
+
+    @Test
+    public void projectsLocalPlaneFromOrigin() {
+        Projection local = Projection.local(43.642567, -79.387139);
+        NMEA.GPSPosition gps = _position(43.642567, -79.387139);
+        local.project(gps);
+        assertEquals(0, gps.easting, MM);
+        assertEquals(0, gps.northing, MM);
+        // A thousandth of a degree is M dphi north and N cos(lat) dlon east, by the radii of
+        // curvature at the origin.
+        gps = _position(43.643567, -79.387139);
+        local.project(gps);
+        assertEquals(0, gps.easting, MM);
+        assertEquals(111.1053, gps.northing, CM);
+        gps = _position(43.642567, -79.386139);
+        local.project(gps);
+        assertEquals(80.6861, gps.easting, CM);
+        assertEquals(0, gps.northing, CM);
+    }
+
+    private static void _assertUtm(double lat, double lon, int zone, double easting, double northing) {
+        assertEquals(zone, Projection.utmZone(lon));
+        NMEA.GPSPosition gps = _position(lat, lon);
+        Projection.utmFor(lat, lon).project(gps);
+        assertEquals(easting, gps.easting, CM);
+        assertEquals(northing, gps.northing, CM);
+    }
+
+    private static NMEA.GPSPosition _position(double lat, double lon) {
+        NMEA.GPSPosition gps = new NMEA.GPSPosition();
+        gps.setLat(lat);
+        gps.setLon(lon);
+        return gps;
+    }
+
+    private static final double MM = 0.001;
+    private static final double CM = 0.01;
+}
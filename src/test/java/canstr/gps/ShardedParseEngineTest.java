@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import canstr.parse.ChecksumMode;
+import canstr.parse.IPacket;
+import canstr.parse.SentenceParser;
+import es.agroguia.model.NMEA;
+
+public class ShardedParseEngineTest {
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+    }
+
+    @Test
+    public void rejectsBadChecksumsByDefault() {
+        ShardedParseEngine engine = new ShardedParseEngine(1);
+        assertEquals(ChecksumMode.REJECT, engine.addSource("a").getParser().getChecksumMode());
+    }
+
+    @Test
+    public void dropsWholeSentencesWhenTheRingIsFull() throws InterruptedException {
+        ShardedParseEngine.Source source = mEngine.addSource("a");
+        String[] sentences = new String[6];
+        for (int i = 0; i < sentences.length; i++) {
+            sentences[i] = _sentence("GPGGA,12000" + i + ".00") + "\r";
+        }
+        // Not started, so nothing is drained and the four chunks fill up, the last with half a
+        // sentence.
+        source.Parse(sentences[0]);
+        source.Parse(sentences[1]);
+        source.Parse(sentences[2]);
+        int half = sentences[3].length() / 2;
+        source.Parse(sentences[3].substring(0, half));
+        source.Parse(sentences[3].substring(half));
+        source.Parse(sentences[4]);
+        assertEquals(4, source.getQueuedChunks());
+        assertEquals(sentences[3].length() - half + sentences[4].length(), source.getDroppedBytes());
+
+        mEngine.start();
+        _drain(source);
+        source.Parse(sentences[5]);
+        _drain(source);
+        mEngine.stop();
+
+        assertEquals(Arrays.asList(sentences[0], sentences[1], sentences[2], sentences[5]), mReceived);
+        assertEquals(0, source.getParser().getChecksumFailureCount());
+    }
+
+    @Test
+    public void queuesFramedPacketsWithoutAnExtraDelimiter() throws InterruptedException {
+        final ShardedParseEngine.Source source = mEngine.addSource("a");
+        mEngine.start();
+        SentenceParser upstream = new SentenceParser() {
+            @Override
+            public void onPacket(IPacket packet) {
+                source.onPacket(packet);
+            }
+        };
+        String sentence = _sentence("GPGGA,120000.00") + "\r";
+        upstream.Parse(sentence + sentence);
+        _drain(source);
+        mEngine.stop();
+
+        assertEquals(Arrays.asList(sentence, sentence), mReceived);
+        assertEquals(0, source.getParser().getChecksumFailureCount());
+    }
+
+    @Test
+    public void discardsQueuedChunksOfARemovedSource() {
+        ShardedParseEngine.Source source = mEngine.addSource("a");
+        source.Parse(_sentence("GPGGA,120000.00") + "\r");
+        assertEquals(1, source.getQueuedChunks());
+        mEngine.removeSource(source);
+        assertEquals(0, source.getQueuedChunks());
+    }
+
+    private static void _drain(ShardedParseEngine.Source source) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.getQueuedChunks() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, source.getQueuedChunks());
+    }
+
+    /**
+     * @return "$" body "*hh" with the correct checksum.
+     */
+    private static String _sentence(String body) {
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            sum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X", body, sum);
+    }
+
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    // One worker with four 64 byte chunks per source.
+    private final ShardedParseEngine mEngine = new ShardedParseEngine(1, 64, 4) {
+        @Override
+        protected NmeaParser createParser(Source source) {
+            NmeaParser parser = new NmeaParser(NMEA.DEFAULT_REGISTRY, null) {
+                @Override
+                public void onPacket(IPacket packet) {
+                    mReceived.add(packet.getString());
+                    super.onPacket(packet);
+                }
+            };
+            parser.setChecksumMode(ChecksumMode.REJECT);
+            return parser;
+        }
+    };
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TrackStatisticsTest {
+
+    @Test
+    public void countsDistanceAndTimeWhileMoving() {
+        TrackStatistics stats = new TrackStatistics(3);
+        _drive(stats, 0, 11, 5, 1);
+        assertEquals(10 * METRES_PER_STEP, stats.getDistance(), 0.01);
+        assertEquals(30 * METRES_PER_STEP, stats.getArea(), 0.05);
+        assertEquals(10000000, stats.getMovingMicros());
+        assertEquals(0, stats.getIdleMicros());
+        assertEquals(11, stats.getFixCount());
+        assertEquals(10 * METRES_PER_STEP, stats.getWindowDistance(), 0.01);
+    }
+
+    @Test
+    public void countsIdleTimeButNoDistance() {
+        TrackStatistics stats = new TrackStatistics(3);
+        _drive(stats, 0, 11, 0.1f, 1);
+        assertEquals(0, stats.getDistance(), 0);
+        assertEquals(10000000, stats.getIdleMicros());
+        assertEquals(10000000, stats.getWindowIdleMicros());
+    }
+
+    @Test
+    public void emptiesTheWindowAfterAGap() {
+        TrackStatistics stats = new TrackStatistics(3);
+        _drive(stats, 0, 11, 5, 1);
+        // Lost signal for two minutes: not counted, but the window has moved past the track.
+        stats.add(LAT, LON, START + 130000000L, 5, 1);
+        assertEquals(10 * METRES_PER_STEP, stats.getDistance(), 0.01);
+        assertEquals(0, stats.getWindowDistance(), 0);
+        assertEquals(0, stats.getWindowMovingMicros());
+        assertEquals(130000000, stats.getElapsedMicros());
+    }
+
+    @Test
+    public void emptiesTheWindowWhileThereIsNoFix() {
+        TrackStatistics stats = new TrackStatistics(3);
+        _drive(stats, 0, 11, 5, 1);
+        _drive(stats, 11, 80, 5, 0);
+        assertEquals(10 * METRES_PER_STEP, stats.getDistance(), 0.01);
+        assertEquals(11, stats.getFixCount());
+        assertEquals(0, stats.getWindowDistance(), 0);
+        assertEquals(0, stats.getWindowMovingMicros());
+        // The first fix back is measured from nothing, the next from it.
+        _drive(stats, 80, 82, 5, 1);
+        assertEquals(11 * METRES_PER_STEP, stats.getDistance(), 0.01);
+        assertEquals(METRES_PER_STEP, stats.getWindowDistance(), 0.01);
+    }
+
+    @Test
+    public void ignoresFixesOlderThanTheLast() {
+        TrackStatistics stats = new TrackStatistics(3);
+        _drive(stats, 0, 11, 5, 1);
+        stats.add(LAT, LON, START, 5, 1);
+        assertEquals(11, stats.getFixCount());
+        assertEquals(10 * METRES_PER_STEP, stats.getDistance(), 0.01);
+    }
+
+    /**
+     * Add a fix a second from step first to before step last, heading north a step each second.
+     */
+    private static void _drive(TrackStatistics stats, int first, int last, float knots, int quality) {
+        for (int i = first; i < last; i++) {
+            stats.add(LAT + i * STEP, LON, START + i * 1000000L, knots, quality);
+        }
+    }
+
+    private static final double LAT = 40.0;
+    private static final double LON = -3.0;
+    private static final double STEP = 0.0001;
+    private static final double METRES_PER_STEP = Math.toRadians(STEP) * 6371008.8;
+    private static final long START = 12 * 3600 * 1000000L;
+}
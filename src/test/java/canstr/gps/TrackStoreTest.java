@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.gps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import es.agroguia.model.NMEA;
+
+public class TrackStoreTest {
+
+    @Test
+    public void simplifiesAStraightRunToItsEnds() {
+        TrackStore store = new TrackStore(10000, 1);
+        _line(store, 0, 100, 0);
+        assertEquals(2, store.size());
+        assertEquals(98, store.getSimplifiedCount());
+        assertEquals(_time(0), store.getTimeMicros(0));
+        assertEquals(_time(99), store.getTimeMicros(1));
+        assertEquals(LAT + 99 * STEP, store.getLat(1), 1e-7);
+    }
+
+    @Test
+    public void keepsCornersBeyondTheTolerance() {
+        TrackStore store = new TrackStore(10000, 1);
+        _line(store, 0, 50, 0);
+        // Turn east at the last fix north.
+        for (int i = 50; i < 100; i++) {
+            store.add(LAT + 49 * STEP, LON + (i - 49) * STEP, _time(i), 5, 90, 100, 1);
+        }
+        assertEquals(3, store.size());
+        assertEquals(_time(49), store.getTimeMicros(1));
+    }
+
+    @Test
+    public void endsARunAtAGap() {
+        TrackStore store = new TrackStore(10000, 1);
+        _line(store, 0, 50, 0);
+        _line(store, 50, 100, 10000000);
+        assertEquals(3, store.size());
+        assertEquals(_time(49), store.getTimeMicros(1));
+        assertEquals(_time(99) + 10000000, store.getTimeMicros(2));
+    }
+
+    @Test
+    public void dropsTheOldestChunkWhenFull() {
+        TrackStore store = new TrackStore(1, 0);
+        int count = 3 * TrackStore.CHUNK_SIZE + 10;
+        _zigzag(store, count);
+        assertEquals(count, store.getAddedCount());
+        assertEquals(0, store.getSimplifiedCount());
+        assertTrue(store.getEvictedCount() > 0);
+        assertEquals(0, store.getEvictedCount() % TrackStore.CHUNK_SIZE);
+        assertEquals(count, store.size() + store.getEvictedCount());
+        assertEquals(_time((int) store.getEvictedCount()), store.getTimeMicros(0));
+        assertEquals(_time(count - 1), store.getTimeMicros(store.size() - 1));
+    }
+
+    @Test
+    public void findsAndCopiesFixesByTime() {
+        TrackStore store = new TrackStore(10000, 0);
+        _zigzag(store, 100);
+        int from = store.indexAtOrAfter(_time(10));
+        int to = store.indexAtOrAfter(_time(20) + 1);
+        assertEquals(10, from);
+        assertEquals(21, to);
+        assertEquals(100, store.indexAtOrAfter(_time(99) + 1));
+        FixBatch batch = new FixBatch(4);
+        int copied = 0;
+        for (int i = from; i < to; ) {
+            i = store.get(i, to, batch);
+            copied += batch.size();
+        }
+        assertEquals(11, copied);
+        assertEquals(_time(20), batch.timeMicros[batch.size() - 1]);
+    }
+
+    @Test
+    public void carriesTimesOnPastMidnight() {
+        TrackStore store = new TrackStore(10000, 0);
+        long beforeMidnight = NMEA.DAY_MICROS - 1000000;
+        store.add(LAT, LON, beforeMidnight, 5, 0, 100, 1);
+        store.add(LAT + STEP, LON + STEP, 1000000, 5, 0, 100, 1);
+        assertEquals(NMEA.DAY_MICROS + 1000000, store.getTimeMicros(1));
+        NMEA.GPSPosition gps = new NMEA.GPSPosition();
+        store.get(1, gps);
+        assertEquals(1, gps.getTime(), 1e-6);
+        assertEquals(1, gps.quality);
+    }
+
+    private static void _line(TrackStore store, int first, int last, long offset) {
+        for (int i = first; i < last; i++) {
+            store.add(LAT + i * STEP, LON, _time(i) + offset, 5, 0, 100, 1);
+        }
+    }
+
+    /**
+     * Add fixes heading north which step east and back, so none lies on the line between its
+     * neighbours.
+     */
+    private static void _zigzag(TrackStore store, int count) {
+        for (int i = 0; i < count; i++) {
+            store.add(LAT + i * STEP, LON + (i % 2) * STEP, _time(i), 5, 0, 100, 1);
+        }
+    }
+
+    private static long _time(int i) {
+        return 6 * 3600 * 1000000L + i * 1000000L;
+    }
+
+    private static final double LAT = 40.0;
+    private static final double LON = -3.0;
+    private static final double STEP = 0.0001;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SentenceParserTest {
+
+    @Test
+    public void framesSentencesSplitAcrossCalls() {
+        Recorder parser = new Recorder(2048, "\r\n");
+        parser.Parse("$GPGGA,1*00\r");
+        parser.Parse("\n$GPR");
+        parser.Parse(ByteBuffer.wrap("MC,2*00\r\n$GP".getBytes()));
+        assertEquals(2, parser.sentences.size());
+        assertEquals("$GPGGA,1*00\r\n", parser.sentences.get(0));
+        assertEquals("$GPRMC,2*00\r\n", parser.sentences.get(1));
+    }
+
+    @Test
+    public void ignoresChecksumsByDefault() {
+        Recorder parser = new Recorder(2048, "\r");
+        parser.Parse("$GPGGA,1*00\r$GPGGA,2\r");
+        assertEquals(2, parser.sentences.size());
+        assertTrue(parser.valid.get(0));
+        assertTrue(parser.valid.get(1));
+        assertEquals(0, parser.getChecksumFailureCount());
+    }
+
+    @Test
+    public void flagsSentencesWithBadChecksums() {
+        Recorder parser = new Recorder(2048, "\r");
+        parser.setChecksumMode(ChecksumMode.FLAG);
+        parser.Parse(_sentence("GPGGA,1") + "\r$GPGGA,2*00\r$GPGGA,3\r" + _sentence("GPRMC,4") + "\r");
+        assertEquals(4, parser.sentences.size());
+        assertTrue(parser.valid.get(0));
+        assertFalse(parser.valid.get(1));
+        assertFalse(parser.valid.get(2));
+        assertTrue(parser.valid.get(3));
+        assertEquals(2, parser.getChecksumFailureCount());
+    }
+
+    @Test
+    public void rejectsSentencesWithBadChecksums() {
+        Recorder parser = new Recorder(2048, "\r");
+        parser.setChecksumMode(ChecksumMode.REJECT);
+        // The checksum is accumulated while framing, so it may arrive in pieces.
+        String good = _sentence("GPGGA,1");
+        parser.Parse(good.substring(0, 5));
+        parser.Parse(good.substring(5) + "\r$GPGGA,2*00\r");
+        assertEquals(1, parser.sentences.size());
+        assertEquals(good + "\r", parser.sentences.get(0));
+        assertEquals(1, parser.getChecksumFailureCount());
+    }
+
+    @Test
+    public void resyncsAtLastSentenceStartAfterOverrun() {
+        Recorder parser = new Recorder(16, "\r");
+        // The delimiter was lost, so the first sentence runs into the second.
+        parser.Parse("$GPGGA,123456$GPRMC,1\r");
+        assertEquals(1, parser.getOverrunCount());
+        assertEquals(1, parser.sentences.size());
+        assertEquals("$GPRMC,1\r", parser.sentences.get(0));
+    }
+
+    @Test
+    public void discardsUntilNextSentenceStartAfterOverrun() {
+        Recorder parser = new Recorder(16, "\r");
+        parser.Parse("0123456789abcdefghij\r$GPGGA,1\r");
+        assertEquals(1, parser.getOverrunCount());
+        assertEquals(1, parser.sentences.size());
+        assertEquals("$GPGGA,1\r", parser.sentences.get(0));
+    }
+
+    @Test
+    public void resyncDropsThePiecesEitherSideOfAGap() {
+        Recorder parser = new Recorder(2048, "\r");
+        parser.Parse("$GPGGA,1*00\r$GPGGA,");
+        // The rest of the second sentence and the start of the third were lost.
+        parser.resync();
+        parser.Parse("0*00\r$GPRMC,4*00\r");
+        assertEquals(2, parser.sentences.size());
+        assertEquals("$GPGGA,1*00\r", parser.sentences.get(0));
+        assertEquals("$GPRMC,4*00\r", parser.sentences.get(1));
+    }
+
+    /**
+     * @return "$" body "*hh" with the correct checksum.
+     */
+    private static String _sentence(String body) {
+        int sum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            sum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X", body, sum);
+    }
+
+    private static class Recorder extends SentenceParser {
+        Recorder(int maxSentenceSize, String delimiter) {
+            super(maxSentenceSize, delimiter);
+        }
+
+        @Override
+        public void onPacket(IPacket packet) {
+            sentences.add(packet.getString());
+            valid.add(packet.isValid());
+        }
+
+        final List<String> sentences = new ArrayList<String>();
+        final List<Boolean> valid = new ArrayList<Boolean>();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import canstr.parse.IPacket;
+import canstr.parse.SentenceParser;
+
+/**
+ * Drives NetworkIngest against TCP servers on the loopback interface.
+ */
+public class NetworkIngestTest {
+
+    @Before
+    public void setUp() throws IOException {
+        mIngest = new NetworkIngest(10, 100);
+        mIngest.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mIngest.stop();
+        for (ServerSocket server : mServers) {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void readsSentencesFromTcpSource() throws IOException, InterruptedException {
+        Recorder target = new Recorder();
+        NetworkIngest.Source source = mIngest.addTcp("127.0.0.1", _listen(0), target);
+        Socket client = mServers[0].accept();
+        try {
+            _send(client, "$GPGGA,1*00\r\n$GPRMC,2*00\r\n");
+            assertEquals("$GPGGA,1*00", target.next());
+            assertEquals("$GPRMC,2*00", target.next());
+            assertTrue(source.isConnected());
+            assertEquals(26, source.getBytesReceived());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void reconnectsAfterConnectionDrops() throws IOException, InterruptedException {
+        Recorder target = new Recorder();
+        NetworkIngest.Source source = mIngest.addTcp("127.0.0.1", _listen(0), target);
+        Socket first = mServers[0].accept();
+        _send(first, "$GPGGA,1*00\r\n");
+        assertEquals("$GPGGA,1*00", target.next());
+        first.close();
+
+        Socket second = mServers[0].accept();
+        try {
+            _send(second, "$GPGGA,2*00\r\n");
+            assertEquals("$GPGGA,2*00", target.next());
+            assertEquals(1, source.getReconnectCount());
+            assertTrue(source.getLastError() instanceof IOException);
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void failingTargetOnlyFailsItsOwnSource() throws IOException, InterruptedException {
+        Recorder good = new Recorder();
+        Recorder bad = new Recorder() {
+            @Override
+            public void onPacket(IPacket packet) {
+                throw new IllegalStateException("bad target");
+            }
+        };
+        NetworkIngest.Source goodSource = mIngest.addTcp("127.0.0.1", _listen(0), good);
+        NetworkIngest.Source badSource = mIngest.addTcp("127.0.0.1", _listen(1), bad);
+        Socket goodClient = mServers[0].accept();
+        Socket badClient = mServers[1].accept();
+        Socket again = null;
+        try {
+            _send(badClient, "$GPGGA,1*00\r\n");
+            // The failed source is closed and connects again. Keep the new connection open, or
+            // its end would replace the error.
+            again = mServers[1].accept();
+            assertTrue(badSource.getLastError() instanceof IllegalStateException);
+            assertTrue(badSource.getReconnectCount() >= 1);
+
+            _send(goodClient, "$GPGGA,2*00\r\n");
+            assertEquals("$GPGGA,2*00", good.next());
+            assertTrue(goodSource.isConnected());
+            assertEquals(0, goodSource.getReconnectCount());
+        } finally {
+            goodClient.close();
+            badClient.close();
+            if (again != null) {
+                again.close();
+            }
+        }
+    }
+
+    @Test
+    public void countsSourcesUntilRemoved() throws IOException {
+        NetworkIngest.Source first = mIngest.addTcp("127.0.0.1", _listen(0), new Recorder());
+        mIngest.addTcp("127.0.0.1", _listen(1), new Recorder());
+        assertEquals(2, mIngest.getSourceCount());
+        // Counted out at once, even before the I/O thread has got to the removal.
+        mIngest.remove(first);
+        mIngest.remove(first);
+        assertEquals(1, mIngest.getSourceCount());
+    }
+
+    /**
+     * Open a loopback server in the given slot.
+     * @return its port.
+     */
+    private int _listen(int slot) throws IOException {
+        ServerSocket server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(TIMEOUT_MS);
+        mServers[slot] = server;
+        return server.getLocalPort();
+    }
+
+    private static void _send(Socket client, String text) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(text.getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * Keeps each sentence received, trimmed of line end bytes.
+     */
+    private static class Recorder extends SentenceParser {
+        @Override
+        public void onPacket(IPacket packet) {
+            mSentences.add(packet.getString().trim());
+        }
+
+        String next() throws InterruptedException {
+            String sentence = mSentences.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (sentence == null) {
+                throw new AssertionError("No sentence within " + TIMEOUT_MS + "ms");
+            }
+            return sentence;
+        }
+
+        private final BlockingQueue<String> mSentences = new LinkedBlockingQueue<String>();
+    }
+
+    private static final int TIMEOUT_MS = 5000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket[] mServers = new ServerSocket[2];
+    private NetworkIngest mIngest;
+}
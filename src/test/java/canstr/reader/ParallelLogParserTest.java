@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import canstr.gps.FixBatch;
+import canstr.gps.NmeaParser;
+import canstr.parse.IPacket;
+import es.agroguia.model.NMEA;
+
+public class ParallelLogParserTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        mParser.shutdown();
+    }
+
+    @Test
+    public void parsesCrLfLinesWithoutAJunkFrame() throws IOException {
+        _check(_write("crlf.nmea", "\r\n", true, false));
+    }
+
+    @Test
+    public void parsesLfLines() throws IOException {
+        _check(_write("lf.nmea", "\n", true, false));
+    }
+
+    @Test
+    public void parsesCrLines() throws IOException {
+        _check(_write("cr.nmea", "\r", true, false));
+    }
+
+    @Test
+    public void endsAFinalLineWithoutALineEnd() throws IOException {
+        _check(_write("open.nmea", "\r\n", false, false));
+    }
+
+    @Test
+    public void parsesGzipCrLfLines() throws IOException {
+        _check(_write("crlf.nmea.gz", "\r\n", true, true));
+    }
+
+    /**
+     * Parse in both orders, expecting a fix and a packet per line, and so no extra frames.
+     */
+    private void _check(File log) throws IOException {
+        for (boolean ordered : new boolean[] {true, false}) {
+            mPackets.set(0);
+            long fixes = mParser.parse(log.getPath(), new NmeaParser.BatchListener() {
+                public void onFixBatch(FixBatch batch) {
+                }
+            }, ordered);
+            assertEquals(LINES, fixes);
+            assertEquals(LINES, mPackets.get());
+        }
+    }
+
+    private File _write(String name, String lineEnd, boolean endLast, boolean gzip) throws IOException {
+        File file = mFolder.newFile(name);
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        try {
+            for (int i = 0; i < LINES; i++) {
+                String line = String.format(Locale.US,
+                        "$GPGGA,12%02d%02d.00,4338.5540,N,07923.2283,W,1,08,0.9,100.0,M,,,,*00",
+                        i / 60, i % 60);
+                out.write(line.getBytes("US-ASCII"));
+                if (endLast || i < LINES - 1) {
+                    out.write(lineEnd.getBytes("US-ASCII"));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static final int LINES = 500;
+
+    private final AtomicLong mPackets = new AtomicLong();
+    // Small chunks, so every file is cut into many.
+    private final ParallelLogParser mParser = new ParallelLogParser(new ForkJoinPool(4), 1024) {
+        @Override
+        protected NmeaParser createParser(String delimiter) {
+            return new NmeaParser(NMEA.DEFAULT_REGISTRY, null, delimiter) {
+                @Override
+                public void onPacket(IPacket packet) {
+                    mPackets.incrementAndGet();
+                    super.onPacket(packet);
+                }
+            };
+        }
+    };
+}
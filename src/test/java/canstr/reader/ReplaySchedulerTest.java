@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import canstr.parse.SentenceParser;
+
+public class ReplaySchedulerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void sendsNoLineWaitingForItsTimeOnceStopped() throws IOException, InterruptedException {
+        File log = mFolder.newFile("log.nmea");
+        OutputStream out = new FileOutputStream(log);
+        try {
+            out.write(("$GPGGA,120000.00,4338.5540,N,07923.2283,W,1,08,0.9,100.0,M,,,,*00\r\n"
+                    + "$GPGGA,120001.00,4338.5540,N,07923.2283,W,1,08,0.9,100.0,M,,,,*00\r\n")
+                    .getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        final AtomicInteger parsed = new AtomicInteger();
+        SentenceParser target = new SentenceParser() {
+            @Override
+            public void Parse(byte[] data, int offset, int length) {
+                parsed.incrementAndGet();
+            }
+        };
+        ReplayScheduler scheduler = new ReplayScheduler(1);
+        try {
+            ReplayScheduler.Stream stream = scheduler.add(log.getPath(), target, "\r\n", 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (stream.getLinesSent() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, stream.getLinesSent());
+            // The second line is due a second after the first.
+            stream.stop();
+            assertTrue(stream.isFinished());
+            Thread.sleep(1500);
+            assertEquals(1, stream.getLinesSent());
+            assertEquals(1, parsed.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017. Sipke Vriend
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *   * Neither the name of canstr nor the names of its contributors may be used
+ *     to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package canstr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SpscRingTest {
+
+    @Test
+    public void handsSlotsOverInOrderUntilFull() {
+        long[][] slots = _slots(4);
+        SpscRing<long[]> ring = new SpscRing<long[]>(slots);
+        assertEquals(4, ring.capacity());
+        assertNull(ring.peek());
+        for (int i = 0; i < 4; i++) {
+            ring.claim()[0] = i;
+            ring.publish();
+        }
+        assertNull(ring.claim());
+        assertEquals(4, ring.size());
+        for (int i = 0; i < 4; i++) {
+            long[] slot = ring.peek();
+            assertSame(slots[i], slot);
+            assertEquals(i, slot[0]);
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertEquals(0, ring.size());
+        // Slots are reused in the same order as the ring wraps.
+        assertSame(slots[0], ring.claim());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSlotCountNotPowerOfTwo() {
+        new SpscRing<long[]>(_slots(3));
+    }
+
+    @Test
+    public void passesEveryElementBetweenThreads() throws InterruptedException {
+        final SpscRing<long[]> ring = new SpscRing<long[]>(_slots(64));
+        final int count = 1000000;
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    long[] slot;
+                    while ((slot = ring.claim()) == null) {
+                        Thread.yield();
+                    }
+                    slot[0] = i;
+                    ring.publish();
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            long[] slot;
+            while ((slot = ring.peek()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, slot[0]);
+            ring.release();
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+    }
+
+    private static long[][] _slots(int count) {
+        long[][] slots = new long[count][];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new long[1];
+        }
+        return slots;
+    }
+}